@@ -1,10 +1,16 @@
 package com.dawnop.benchmark;
 
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.results.Result;
 import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Defaults;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
@@ -12,9 +18,36 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 import org.openjdk.jmh.runner.options.TimeValue;
 import org.openjdk.jmh.runner.options.VerboseMode;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import static java.lang.Integer.getInteger;
 
 /**
  * 这是一些看起来很复杂但很有意思的例子，看看如何在复杂的业务场景下使用 JMH。
@@ -54,6 +87,16 @@ public class JMHSample_25_API_GA {
      * <p>
      * 虚拟机大佬们能猜出哪个选项能获得最好的性能。
      * 跑一跑这个例子看看是否改进了性能。
+     * <p>
+     * 每个个体都要 fork 一个 JVM 来打分，串行跑完 100 代要好几个小时。
+     * 可以通过 -Dparallelism=N 同时跑 N 个 fork，参见 {@link Evaluator}。
+     * <p>
+     * 交叉和突变经常生出一模一样的个体，测过的参数会记在 {@link FitnessCache} 里，
+     * 通过 -DfitnessCache=path 指定缓存文件，调优中途崩溃了也可以接着跑。
+     * <p>
+     * 要调的参数由 {@link SearchSpace} 描述，遗传算法也只是 {@link Strategy} 的一种，
+     * 还可以试试 {@link SuccessiveHalving} (-Dstrategy=halving) 和 {@link CmaEs} (-Dstrategy=cma)。
+     * 通过 -Dpopulation=N 调整遗传算法和 CMA-ES 每一代的个体数。
      */
 
     public static void main(String[] args) throws RunnerException {
@@ -68,103 +111,909 @@ public class JMHSample_25_API_GA {
                 .verbosity(VerboseMode.SILENT)
                 .build();
 
-        // 初始化种群
-        Population pop = new Population();
-        final int POPULATION = 10;
-        for (int c = 0; c < POPULATION; c++) {
-            pop.addChromosome(new Chromosome(baseOpts));
+        FitnessCache cache;
+        try {
+            cache = new FitnessCache(
+                    new File(System.getProperty("fitnessCache",
+                            new File(System.getProperty("java.io.tmpdir"), "jmh-ga-fitness.tsv").getPath())),
+                    Double.parseDouble(System.getProperty("maxError", "0.05")));
+        } catch (IOException e) {
+            throw new RunnerException("Can not open fitness cache", e);
+        }
+
+        // 默认只调内联参数，-Dspace=full 时调整更多的参数
+        SearchSpace space = "full".equals(System.getProperty("space")) ?
+                SearchSpace.full() : SearchSpace.inlining();
+
+        // 默认用遗传算法，-Dstrategy=halving 时用逐次减半，-Dstrategy=cma 时用 CMA-ES
+        Strategy strategy;
+        switch (System.getProperty("strategy", "genetic")) {
+            case "halving":
+                strategy = new SuccessiveHalving(27, 3);
+                break;
+            case "cma":
+                strategy = new CmaEs(getInteger("population", CmaEs.defaultLambda(space.size())), 30);
+                break;
+            default:
+                strategy = new Genetic(getInteger("population", 10), 100);
+        }
+
+        Evaluator evaluator = new Evaluator(getInteger("parallelism", 1), cache);
+        try {
+            Chromosome best = strategy.optimize(space, baseOpts, evaluator);
+            System.out.println("Best: " + best);
+        } finally {
+            evaluator.shutdown();
+            try {
+                cache.close();
+            } catch (IOException e) {
+                // 已经写进去的结果都 flush 过了
+            }
+        }
+    }
+
+    /**
+     * 调优策略。遗传算法只是其中一种。
+     */
+    public interface Strategy {
+        /**
+         * 在搜索空间中找到得分最高的个体。
+         */
+        Chromosome optimize(SearchSpace space, Options baseOpts, Evaluator evaluator) throws RunnerException;
+    }
+
+    /**
+     * 遗传算法。
+     */
+    public static class Genetic implements Strategy {
+        private final int population;
+        private final int generations;
+
+        public Genetic(int population, int generations) {
+            // 每一代至少要留下两个精英个体
+            if (population < 2) {
+                throw new IllegalArgumentException("Population must be at least 2: " + population);
+            }
+            this.population = population;
+            this.generations = generations;
+        }
+
+        @Override
+        public Chromosome optimize(SearchSpace space, Options baseOpts, Evaluator evaluator) throws RunnerException {
+            // 初始化种群
+            Population pop = new Population();
+            List<Chromosome> initial = new ArrayList<>();
+            for (int c = 0; c < population; c++) {
+                initial.add(new Chromosome(baseOpts, space));
+            }
+            evaluator.evaluate(initial);
+            for (Chromosome c : initial) {
+                pop.addChromosome(c);
+            }
+
+            // 进行一些小优化
+            for (int g = 0; g < generations; g++) {
+                System.out.println("Entering generation " + g);
+
+                // 获取 baseline 分数
+                // 误差还比较大时重新测量，和之前的结果合并，获取可靠的当前估计
+                Fitness baseResult = evaluator.baseline(baseOpts);
+                printTable(baseResult, pop.getAll());
+
+                Population newPop = new Population();
+
+                // 找到不错的个体
+                final int ELITE = 2;
+                for (Chromosome c : pop.getAll().subList(0, Math.min(ELITE, pop.size()))) {
+                    newPop.addChromosome(c);
+                }
+
+                // 杂交剩余的新种群
+                // 先把子代都生出来，再一起打分，这样才能同时 fork 多个 JVM
+                List<Chromosome> children = new ArrayList<>();
+                while (newPop.size() + children.size() < pop.size()) {
+                    Chromosome p1 = pop.selectToBreed();
+                    Chromosome p2 = pop.selectToBreed();
+
+                    children.add(p1.crossover(p2).mutate());
+                    children.add(p2.crossover(p1).mutate());
+                }
+
+                evaluator.evaluate(children);
+                for (Chromosome c : children) {
+                    newPop.addChromosome(c);
+                }
+
+                pop = newPop;
+            }
+
+            return pop.getAll().get(0);
+        }
+    }
+
+    /**
+     * 逐次减半 (successive halving)。
+     * <p>
+     * 大部分个体都很差，没有必要给它们完整的预热和测量时间。
+     * 先用很短的预热和测量给所有个体打个粗略的分，只留下前 1/eta 的个体，
+     * 再把预算乘以 eta 重新测量，直到只剩一个。预算最多加到 baseOpts 里完整的预热和测量次数。
+     * 差的个体在第一轮就被淘汰了，省下了绝大部分花在它们身上的 fork 时间。
+     * <p>
+     * 参见 <a href="https://arxiv.org/abs/1502.07943">Jamieson &amp; Talwalkar, 2015</a>
+     */
+    public static class SuccessiveHalving implements Strategy {
+        private final int configs;
+        private final int eta;
+
+        public SuccessiveHalving(int configs, int eta) {
+            this.configs = configs;
+            this.eta = eta;
+        }
+
+        @Override
+        public Chromosome optimize(SearchSpace space, Options baseOpts, Evaluator evaluator) throws RunnerException {
+            // 默认参数也参加比赛
+            List<Chromosome> alive = new ArrayList<>();
+            alive.add(new Chromosome(baseOpts, space));
+            while (alive.size() < configs) {
+                alive.add(new Chromosome(baseOpts, space).mutate());
+            }
+
+            int fullWarmup = baseOpts.getWarmupIterations().orElse(Defaults.WARMUP_ITERATIONS);
+            int fullMeasurement = baseOpts.getMeasurementIterations().orElse(Defaults.MEASUREMENT_ITERATIONS);
+            int iterations = 1;
+            while (alive.size() > 1) {
+                int warmup = Math.min(iterations, fullWarmup);
+                int measurement = Math.min(iterations, fullMeasurement);
+                String budget = "@" + warmup + "/" + measurement;
+                System.out.println("Entering rung with " + warmup + "+" + measurement + " iteration(s), "
+                        + alive.size() + " configs");
+
+                Options rungOpts = new OptionsBuilder()
+                        .parent(baseOpts)
+                        .warmupIterations(warmup)
+                        .measurementIterations(measurement)
+                        .build();
+
+                List<Chromosome> trial = new ArrayList<>();
+                for (Chromosome c : alive) {
+                    trial.add(c.withBudget(rungOpts, budget));
+                }
+                evaluator.evaluate(trial);
+                Collections.sort(trial);
+                printTable(evaluator.baseline(rungOpts, budget), trial);
+
+                alive = new ArrayList<>();
+                for (Chromosome c : trial.subList(0, Math.max(1, trial.size() / eta))) {
+                    alive.add(c.withBudget(baseOpts, ""));
+                }
+                // 已经是完整的预算了，再乘下去只会溢出
+                if (iterations < Math.max(fullWarmup, fullMeasurement)) {
+                    iterations *= eta;
+                }
+            }
+
+            // 冠军用完整的预算再测一次
+            evaluator.evaluate(alive);
+            return alive.get(0);
+        }
+    }
+
+    /**
+     * CMA-ES (covariance matrix adaptation evolution strategy)。
+     * <p>
+     * 遗传算法的突变是每个参数各自随机缩放，看不出参数之间的关系，
+     * 比如 MaxInlineSize 和 FreqInlineSize 往往要一起调大才有用。
+     * CMA-ES 从一个多元正态分布里采样，每一代用最好的一半个体更新分布的均值、步长和协方差矩阵，
+     * 协方差矩阵会学到哪些参数应该一起变、往哪个方向变。
+     * <p>
+     * 每个参数先由 {@link Flag#encode} 映射到 [0, 1]，在这个连续空间里搜索，打分前再 decode 回整数。
+     * 数值型参数按对数刻度映射，0 到 10000 的范围里 35 和 325 的差别不会被压扁；
+     * 枚举型参数把 [0, 1] 等分成几段，落在哪段就是哪个选项。
+     * 采样落到 [0, 1] 外面的分量截断到边界，更新分布时也用截断后的点。
+     * <p>
+     * 参数的取法照搬 Hansen 的 <a href="https://arxiv.org/abs/1604.00772">The CMA Evolution Strategy: A Tutorial</a>，
+     * 特征分解用 jmh-core 带进来的 commons-math3。
+     */
+    public static class CmaEs implements Strategy {
+        private final int lambda;
+        private final int generations;
+
+        public CmaEs(int lambda, int generations) {
+            // 至少要有两个个体才能选出“好的一半”
+            if (lambda < 2) {
+                throw new IllegalArgumentException("Population must be at least 2: " + lambda);
+            }
+            this.lambda = lambda;
+            this.generations = generations;
         }
 
-        // 进行一些小优化
-        final int GENERATIONS = 100;
-        for (int g = 0; g < GENERATIONS; g++) {
-            System.out.println("Entering generation " + g);
+        /**
+         * 教程里推荐的每代个体数：4 + 3 ln n。
+         */
+        public static int defaultLambda(int n) {
+            return 4 + (int) (3 * Math.log(Math.max(1, n)));
+        }
+
+        @Override
+        public Chromosome optimize(SearchSpace space, Options baseOpts, Evaluator evaluator) throws RunnerException {
+            final int n = space.size();
+            final int mu = lambda / 2;
+
+            // 前 mu 个个体的权重，越靠前越大
+            double[] w = new double[mu];
+            double sum = 0;
+            for (int i = 0; i < mu; i++) {
+                w[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+                sum += w[i];
+            }
+            double sumSq = 0;
+            for (int i = 0; i < mu; i++) {
+                w[i] /= sum;
+                sumSq += w[i] * w[i];
+            }
+            final double mueff = 1 / sumSq;
+
+            // 各种学习率
+            final double cc = (4 + mueff / n) / (n + 4 + 2 * mueff / n);
+            final double cs = (mueff + 2) / (n + mueff + 5);
+            final double c1 = 2 / ((n + 1.3) * (n + 1.3) + mueff);
+            final double cmu = Math.min(1 - c1, 2 * (mueff - 2 + 1 / mueff) / ((n + 2) * (n + 2) + mueff));
+            final double damps = 1 + 2 * Math.max(0, Math.sqrt((mueff - 1) / (n + 1)) - 1) + cs;
+            // n 维标准正态向量长度的期望
+            final double chiN = Math.sqrt(n) * (1 - 1.0 / (4 * n) + 1.0 / (21.0 * n * n));
+
+            // 从默认参数出发
+            Chromosome start = new Chromosome(baseOpts, space);
+            double[] mean = new double[n];
+            for (int i = 0; i < n; i++) {
+                mean[i] = space.flags.get(i).encode(start.genes[i]);
+            }
+            double sigma = 0.3;
+            double[] pc = new double[n];
+            double[] ps = new double[n];
+            RealMatrix c = MatrixUtils.createRealIdentityMatrix(n);
+            RealMatrix b = MatrixUtils.createRealIdentityMatrix(n);
+            double[] d = new double[n];
+            Arrays.fill(d, 1);
+
+            Chromosome best = null;
+            Random random = new Random();
+            for (int g = 0; g < generations; g++) {
+                System.out.println("Entering generation " + g + ", sigma = " + String.format("%.4f", sigma));
+
+                // 采样：x = mean + sigma * B * D * z
+                List<Chromosome> trial = new ArrayList<>();
+                Map<Chromosome, double[]> points = new IdentityHashMap<>();
+                for (int k = 0; k < lambda; k++) {
+                    double[] z = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        z[i] = d[i] * random.nextGaussian();
+                    }
+                    double[] y = b.operate(z);
+                    double[] x = new double[n];
+                    int[] genes = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        x[i] = Math.max(0, Math.min(1, mean[i] + sigma * y[i]));
+                        genes[i] = space.flags.get(i).decode(x[i]);
+                    }
+                    Chromosome ch = new Chromosome(baseOpts, space, genes);
+                    trial.add(ch);
+                    points.put(ch, x);
+                }
+                evaluator.evaluate(trial);
+                Collections.sort(trial);
+                printTable(evaluator.baseline(baseOpts), trial);
+                if (best == null || trial.get(0).score() > best.score()) {
+                    best = trial.get(0);
+                }
+
+                // 新的均值是前 mu 个点的加权平均
+                double[] old = mean;
+                mean = new double[n];
+                double[][] ys = new double[mu][n];
+                for (int k = 0; k < mu; k++) {
+                    double[] x = points.get(trial.get(k));
+                    for (int i = 0; i < n; i++) {
+                        mean[i] += w[k] * x[i];
+                        ys[k][i] = (x[i] - old[i]) / sigma;
+                    }
+                }
+                double[] yw = new double[n];
+                for (int i = 0; i < n; i++) {
+                    yw[i] = (mean[i] - old[i]) / sigma;
+                }
+
+                // 步长的进化路径：ps 用 C^(-1/2) * yw 更新，和 C 的形状无关
+                double[] bt = b.transpose().operate(yw);
+                for (int i = 0; i < n; i++) {
+                    bt[i] /= d[i];
+                }
+                double[] invSqrtCyw = b.operate(bt);
+                double psNorm = 0;
+                for (int i = 0; i < n; i++) {
+                    ps[i] = (1 - cs) * ps[i] + Math.sqrt(cs * (2 - cs) * mueff) * invSqrtCyw[i];
+                    psNorm += ps[i] * ps[i];
+                }
+                psNorm = Math.sqrt(psNorm);
+                // ps 太长说明步长刚刚变了很多，这一代先不更新 pc，免得 C 长得太快
+                boolean hsig = psNorm / Math.sqrt(1 - Math.pow(1 - cs, 2 * (g + 1))) / chiN < 1.4 + 2.0 / (n + 1);
+                for (int i = 0; i < n; i++) {
+                    pc[i] = (1 - cc) * pc[i] + (hsig ? Math.sqrt(cc * (2 - cc) * mueff) * yw[i] : 0);
+                }
+
+                // 协方差矩阵：秩 1 更新 (pc) 加上秩 mu 更新 (前 mu 个点)
+                double keep = 1 - c1 - cmu + (hsig ? 0 : c1 * cc * (2 - cc));
+                RealMatrix next = c.scalarMultiply(keep);
+                RealVector pcv = new ArrayRealVector(pc);
+                next = next.add(pcv.outerProduct(pcv).scalarMultiply(c1));
+                for (int k = 0; k < mu; k++) {
+                    RealVector yk = new ArrayRealVector(ys[k]);
+                    next = next.add(yk.outerProduct(yk).scalarMultiply(cmu * w[k]));
+                }
+                // 消掉浮点误差带来的不对称
+                c = next.add(next.transpose()).scalarMultiply(0.5);
+
+                sigma *= Math.exp((cs / damps) * (psNorm / chiN - 1));
 
-            // 获取 baseline 分数
-            // 重新测量获取可靠的当前估计
-            RunResult runner = new Runner(baseOpts).runSingle();
-            Result baseResult = runner.getPrimaryResult();
+                // C = B * D^2 * B'
+                EigenDecomposition eigen = new EigenDecomposition(c);
+                b = eigen.getV();
+                double[] ev = eigen.getRealEigenvalues();
+                for (int i = 0; i < n; i++) {
+                    d[i] = Math.sqrt(Math.max(ev[i], 1e-20));
+                }
+            }
+            return best;
+        }
+    }
+
+    // 漂亮的表格
+    private static void printTable(Fitness baseResult, List<Chromosome> chromosomes) {
+        System.out.println("---------------------------------------");
+        System.out.printf("Baseline score: %10.2f %s%n",
+                baseResult.score,
+                baseResult.unit
+        );
 
-            // 漂亮的表格
-            System.out.println("---------------------------------------");
-            System.out.printf("Baseline score: %10.2f %s%n",
-                    baseResult.getScore(),
-                    baseResult.getScoreUnit()
+        for (Chromosome c : chromosomes) {
+            System.out.printf("%10.2f %s (%+10.2f%%) %s%n",
+                    c.getScore(),
+                    baseResult.unit,
+                    (c.getScore() / baseResult.score - 1) * 100,
+                    c.toString()
             );
+        }
+        System.out.println();
+    }
+
+    /**
+     * 评估器：同时给多个个体打分。
+     * <p>
+     * 每个槽位 (slot) 独占一组互不重叠的 CPU，一个槽位同一时刻只跑一个 fork。
+     * 在有 taskset 的 Linux 上，fork 出来的 JVM 会被绑定到槽位的 CPU 上；
+     * 其他平台上只能通过 -XX:ActiveProcessorCount 让 JVM 按槽位大小来调整线程数。
+     * <p>
+     * 注意 JMH 默认会用文件锁阻止多个测试同时运行，因为它们会互相干扰。
+     * 并行评估的前提就是槽位之间互不干扰，所以这里主动忽略了这把锁。
+     * parallelism 为 1 时和原来的串行评估完全一样。
+     * <p>
+     * 打分前先查 {@link FitnessCache}，同一批里参数相同的个体也只测一次。
+     */
+    public static class Evaluator {
+        private static final String BASELINE = "";
+
+        private final BlockingQueue<Platform.Slot> slots;
+        private final ExecutorService pool;
+        private final FitnessCache cache;
+
+        public Evaluator(int parallelism, FitnessCache cache) {
+            this.cache = cache;
+
+            // 按真正能用的 CPU 来分，不一定是 0..n-1
+            List<String> cpuSets = Platform.partition(parallelism);
+            parallelism = cpuSets.size();
+
+            slots = new ArrayBlockingQueue<>(parallelism);
+            if (parallelism == 1) {
+                slots.add(new Platform.Slot(null));
+            } else {
+                System.setProperty("jmh.ignoreLock", "true");
+                for (String cpus : cpuSets) {
+                    Platform.Slot slot = new Platform.Slot(cpus);
+                    // 槽位本身起不来的话，每个个体都会得到最低分，调优白跑一趟，不如现在就失败
+                    slot.verify();
+                    slots.add(slot);
+                }
+            }
+            pool = Executors.newFixedThreadPool(parallelism);
+        }
+
+        /**
+         * 给还没有分数的个体打分，所有个体都打完分才返回。
+         */
+        public void evaluate(Collection<Chromosome> chromosomes) throws RunnerException {
+            Map<String, List<Chromosome>> todo = new LinkedHashMap<>();
+            for (Chromosome c : chromosomes) {
+                if (c.score != Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                Fitness f = cache.lookup(c.key());
+                if (f != null) {
+                    c.score = f.score;
+                    continue;
+                }
+                todo.computeIfAbsent(c.key(), k -> new ArrayList<>()).add(c);
+            }
 
-            for (Chromosome c : pop.getAll()) {
-                System.out.printf("%10.2f %s (%+10.2f%%) %s%n",
-                        c.getScore(),
-                        baseResult.getScoreUnit(),
-                        (c.getScore() / baseResult.getScore() - 1) * 100,
-                        c.toString()
-                );
+            List<Future<Fitness>> pending = new ArrayList<>();
+            for (final List<Chromosome> same : todo.values()) {
+                final Chromosome c = same.get(0);
+                pending.add(pool.submit(() -> {
+                    Fitness f = cache.record(c.key(), inSlot(c.baseOpts, c::measure));
+                    for (Chromosome d : same) {
+                        d.score = f.score;
+                    }
+                    return f;
+                }));
             }
-            System.out.println();
+            await(pending);
+        }
 
-            Population newPop = new Population();
+        /**
+         * baseline 也要在槽位里测，和个体的测量条件保持一致。
+         */
+        public Fitness baseline(Options baseOpts) throws RunnerException {
+            return baseline(baseOpts, "");
+        }
 
-            // 找到不错的个体
-            final int ELITE = 2;
-            for (Chromosome c : pop.getAll().subList(0, ELITE)) {
-                newPop.addChromosome(c);
+        /**
+         * 在给定的测量预算下测量 baseline。
+         */
+        public Fitness baseline(final Options opts, String budget) throws RunnerException {
+            final String key = BASELINE + budget;
+            Fitness f = cache.lookup(key);
+            if (f != null) {
+                return f;
             }
+            List<Future<Fitness>> pending = Collections.singletonList(pool.submit(() ->
+                    cache.record(key, inSlot(opts,
+                            o -> Fitness.of(new Runner(o).runSingle().getPrimaryResult())))));
+            return await(pending).get(0);
+        }
 
-            // 杂交剩余的新种群
-            while (newPop.size() < pop.size()) {
-                Chromosome p1 = pop.selectToBreed();
-                Chromosome p2 = pop.selectToBreed();
+        private interface Measurement {
+            Fitness measure(Options opts) throws RunnerException;
+        }
 
-                newPop.addChromosome(p1.crossover(p2).mutate());
-                newPop.addChromosome(p2.crossover(p1).mutate());
+        private Fitness inSlot(Options opts, Measurement m) throws InterruptedException, RunnerException {
+            Platform.Slot slot = slots.take();
+            try {
+                return m.measure(slot.apply(opts));
+            } finally {
+                slots.put(slot);
             }
+        }
 
-            pop = newPop;
+        private static List<Fitness> await(List<Future<Fitness>> pending) throws RunnerException {
+            List<Fitness> results = new ArrayList<>();
+            try {
+                for (Future<Fitness> f : pending) {
+                    results.add(f.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RunnerException("Interrupted while evaluating", e);
+            } catch (ExecutionException e) {
+                throw new RunnerException("Evaluation failed", e.getCause());
+            }
+            return results;
         }
 
+        public void shutdown() {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 适应度：分数以及 99.9% 置信区间的半宽。
+     */
+    public static class Fitness {
+        /**
+         * JVM 没能跑起来。再测一次也是一样，所以误差记为 0。
+         */
+        static final Fitness FAILED = new Fitness(Double.MIN_VALUE, 0, "");
+
+        final double score;
+        final double error;
+        final String unit;
+
+        Fitness(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        static Fitness of(Result r) {
+            return new Fitness(r.getScore(), r.getScoreError(), r.getScoreUnit());
+        }
+
+        /**
+         * 只测了一次迭代时误差是 NaN，当作误差无穷大。
+         */
+        boolean isPrecise(double maxRelativeError) {
+            return !Double.isNaN(error) && error <= maxRelativeError * Math.abs(score);
+        }
+
+        /**
+         * 按方差的倒数加权合并两次测量，合并后误差会变小。
+         */
+        Fitness merge(Fitness other) {
+            if (Double.isNaN(error)) {
+                return other;
+            }
+            if (Double.isNaN(other.error)) {
+                return this;
+            }
+            if (error == 0 || other.error == 0) {
+                return (error <= other.error) ? this : other;
+            }
+            double w1 = 1 / (error * error);
+            double w2 = 1 / (other.error * other.error);
+            return new Fitness((score * w1 + other.score * w2) / (w1 + w2), 1 / Math.sqrt(w1 + w2), unit);
+        }
+    }
+
+    /**
+     * 适应度缓存。
+     * <p>
+     * key 是 {@link Chromosome#toString()} 给出的 JVM 参数串（以及测量预算），再加上 JDK 和主机的指纹，
+     * 换了 JDK 或者换了机器，之前的分数就不能用了。
+     * <p>
+     * 误差足够小的结果直接复用；误差太大的重新测量，并和之前的结果合并。
+     * <p>
+     * 每条结果测完就追加写入文件，启动时重新读入。
+     * 一行只有几十个字节，整个调优过程也就几千行，没有必要用更复杂的存储。
+     * 上次崩溃时可能只写了半行，读入时先把它截掉，新的结果不会接在半行后面。
+     * <p>
+     * JVM 起不来的个体 ({@link Fitness#FAILED}) 只在本次运行中记住，不写入文件：
+     * 失败也可能是偶然的，比如机器内存一时不够，下次运行还可以再试。
+     */
+    public static class FitnessCache implements Closeable {
+        private final Map<String, Fitness> entries = new HashMap<>();
+        private final String fingerprint;
+        private final double maxRelativeError;
+        private final Writer out;
+
+        public FitnessCache(File file, double maxRelativeError) throws IOException {
+            this.fingerprint = fingerprint();
+            this.maxRelativeError = maxRelativeError;
+
+            if (file.exists()) {
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                int end = bytes.length;
+                while (end > 0 && bytes[end - 1] != '\n') {
+                    end--;
+                }
+                if (end < bytes.length) {
+                    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        ch.truncate(end);
+                    }
+                }
+                for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                    String[] f = line.split("\t", -1);
+                    if (f.length == 5 && f[0].equals(fingerprint)) {
+                        try {
+                            merge(f[1], new Fitness(Double.parseDouble(f[2]), Double.parseDouble(f[3]), f[4]));
+                        } catch (NumberFormatException e) {
+                            // 写坏的一行，跳过它，后面的照样读
+                        }
+                    }
+                }
+            }
+            out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * 返回足够精确的缓存结果，没有则返回 null。
+         */
+        public synchronized Fitness lookup(String flags) {
+            Fitness f = entries.get(flags);
+            return (f != null && f.isPrecise(maxRelativeError)) ? f : null;
+        }
+
+        /**
+         * 记录一次新的测量，返回合并之后的结果。
+         */
+        public synchronized Fitness record(String flags, Fitness measured) throws IOException {
+            if (measured == Fitness.FAILED) {
+                entries.put(flags, measured);
+                return measured;
+            }
+            out.write(fingerprint + "\t" + flags + "\t" + measured.score + "\t" + measured.error + "\t" + measured.unit + "\n");
+            out.flush();
+            return merge(flags, measured);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+
+        private Fitness merge(String flags, Fitness measured) {
+            Fitness old = entries.get(flags);
+            Fitness f = (old == null) ? measured : old.merge(measured);
+            entries.put(flags, f);
+            return f;
+        }
+
+        private static String fingerprint() {
+            String host;
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "unknown";
+            }
+            return System.getProperty("java.vm.name") + " " + System.getProperty("java.version") +
+                    "@" + host + "/" + System.getProperty("os.arch") +
+                    "x" + Runtime.getRuntime().availableProcessors();
+        }
     }
 
     /**
      * 种群
+     * <p>
+     * 评估有了缓存、可以并行之后，种群可以有成千上万个个体，
+     * 所以加入和选择个体都不能是 O(n) 的操作。
      */
     public static class Population {
-        private final List<Chromosome> list = new ArrayList<>();
+        // 按加入的顺序存放，加入时不用排序
+        private Chromosome[] members = new Chromosome[16];
+        private double[] weights = new double[16];
+
+        // 权重的 Fenwick 树 (binary indexed tree)，下标从 1 开始，
+        // 加入个体和轮盘赌选择都是 O(log n)
+        private double[] tree = new double[17];
+
+        private int size;
+        private double totalWeight;
+
+        // 按分数从高到低排好序的快照，加入新个体后失效
+        private Chromosome[] sorted;
 
         public void addChromosome(Chromosome c) {
-            list.add(c);
-            Collections.sort(list);
+            if (size == members.length) {
+                grow();
+            }
+            // 分数当作轮盘上的权重，跑挂了的个体权重为 0
+            double w = Math.max(0, c.score());
+            members[size] = c;
+            weights[size] = w;
+            for (int i = size + 1; i < tree.length; i += i & -i) {
+                tree[i] += w;
+            }
+            totalWeight += w;
+            size++;
+            sorted = null;
+        }
+
+        private void grow() {
+            int capacity = members.length * 2;
+            members = Arrays.copyOf(members, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+
+            // O(n) 重建 Fenwick 树
+            tree = new double[capacity + 1];
+            for (int i = 1; i <= capacity; i++) {
+                tree[i] += weights[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= capacity) {
+                    tree[parent] += tree[i];
+                }
+            }
         }
 
         /**
          * 选择繁殖个体
          * 分高的个题更有可能被选中
+         * <p>
+         * 轮盘赌选择：在 Fenwick 树上二分查找随机数落在哪个个体的区间里。
          */
         public Chromosome selectToBreed() {
-            double totalScore = 0D;
-            for (Chromosome c : list) {
-                totalScore += c.score();
+            if (size == 0) {
+                throw new IllegalStateException("Can not choose");
+            }
+            if (totalWeight <= 0) {
+                return members[(int) (Math.random() * size)];
             }
 
-            double thresh = Math.random() * totalScore;
-            for (Chromosome c : list) {
-                if (thresh < 0) return c;
-                thresh = -c.score();
+            double thresh = Math.random() * totalWeight;
+            int pos = 0;
+            for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+                int next = pos + step;
+                if (next < tree.length && tree[next] <= thresh) {
+                    pos = next;
+                    thresh -= tree[next];
+                }
             }
+            // 浮点误差可能让 pos 越过最后一个个体
+            return members[Math.min(pos, size - 1)];
+        }
 
-            throw new IllegalStateException("Can not choose");
+        /**
+         * 锦标赛选择：随机挑 k 个个体，取其中分数最高的。
+         * <p>
+         * 只看分数的相对高低，不受分数绝对值的影响。
+         * 各个个体的分数都差不多时，轮盘赌几乎等于随机挑选，锦标赛选择仍然有选择压力。
+         */
+        public Chromosome selectByTournament(int k) {
+            if (size == 0) {
+                throw new IllegalStateException("Can not choose");
+            }
+            Chromosome best = null;
+            for (int i = 0; i < k; i++) {
+                Chromosome c = members[(int) (Math.random() * size)];
+                if (best == null || c.score() > best.score()) {
+                    best = c;
+                }
+            }
+            return best;
         }
 
         public int size() {
-            return list.size();
+            return size;
         }
 
+        /**
+         * 按分数从高到低排列的所有个体。
+         */
         public List<Chromosome> getAll() {
-            return list;
+            if (sorted == null) {
+                sorted = Arrays.copyOf(members, size);
+                Arrays.sort(sorted);
+            }
+            return Collections.unmodifiableList(Arrays.asList(sorted));
+        }
+    }
+
+    /**
+     * 搜索空间中的一个 JVM 参数。
+     * <p>
+     * 参数的取值统一编码成 [min, max] 之间的整数，再由 render 翻译成命令行选项。
+     * 数值型参数突变时在原值附近缩放；开关、GC 种类这类枚举型参数突变时直接随机挑一个。
+     */
+    public static class Flag {
+        final String name;
+        final int min;
+        final int max;
+        final int defaultValue;
+        final boolean categorical;
+        final IntFunction<String> render;
+
+        Flag(String name, int min, int max, int defaultValue, boolean categorical, IntFunction<String> render) {
+            this.name = name;
+            this.min = min;
+            this.max = max;
+            this.defaultValue = defaultValue;
+            this.categorical = categorical;
+            this.render = render;
+        }
+
+        /**
+         * -XX:Name=v
+         */
+        public static Flag intFlag(String name, int min, int max, int defaultValue) {
+            return new Flag(name, min, max, defaultValue, false, v -> "-XX:" + name + "=" + v);
+        }
+
+        /**
+         * -XX:+Name / -XX:-Name
+         */
+        public static Flag boolFlag(String name, boolean defaultValue) {
+            return new Flag(name, 0, 1, defaultValue ? 1 : 0, true, v -> "-XX:" + (v != 0 ? "+" : "-") + name);
+        }
+
+        /**
+         * 以 MB 为单位的内存大小，例如 -Xmx512m
+         */
+        public static Flag sizeFlag(String option, int minMb, int maxMb, int defaultMb) {
+            return new Flag(option, minMb, maxMb, defaultMb, false, v -> option + v + "m");
+        }
+
+        /**
+         * 多选一，第一个选项为默认值，例如选择哪一种 GC。
+         */
+        public static Flag choiceFlag(String name, String... options) {
+            return new Flag(name, 0, options.length - 1, 0, true, v -> options[v]);
+        }
+
+        /**
+         * 把取值映射到 [0, 1]，给 {@link CmaEs} 这样在连续空间里搜索的策略用。
+         * 数值型参数用对数刻度，枚举型参数每个选项占一段。
+         */
+        double encode(int v) {
+            if (categorical) {
+                return (v - min + 0.5) / (max - min + 1);
+            }
+            return (max == min) ? 0 : Math.log1p(v - min) / Math.log1p(max - min);
+        }
+
+        /**
+         * {@link #encode} 的反过程，x 会先截断到 [0, 1]。
+         */
+        int decode(double x) {
+            x = Math.max(0, Math.min(1, x));
+            if (categorical) {
+                return Math.min(max, min + (int) (x * (max - min + 1)));
+            }
+            return (int) Math.max(min, Math.min(max, min + Math.round(Math.expm1(x * Math.log1p(max - min)))));
+        }
+
+        int mutate(int v) {
+            final double MUTATE_PROB = 0.5;
+            if (Math.random() >= MUTATE_PROB) {
+                return v;
+            }
+            if (categorical) {
+                return min + (int) (Math.random() * (max - min + 1));
+            }
+            // 虽然这是一种非常菜的突变方法，但是还是有点用。
+            double r = (Math.random() < 0.5) ? v / (Math.random() * 2) : v * (Math.random() * 2);
+            return (int) Math.max(min, Math.min(max, r));
+        }
+    }
+
+    /**
+     * 搜索空间：要调的 JVM 参数列表。
+     */
+    public static class SearchSpace {
+        final List<Flag> flags = new ArrayList<>();
+
+        public SearchSpace add(Flag flag) {
+            flags.add(flag);
+            return this;
+        }
+
+        public int size() {
+            return flags.size();
+        }
+
+        /**
+         * 最早的六个方法内联参数，默认值与当前 HotSpot 一致。
+         */
+        public static SearchSpace inlining() {
+            return new SearchSpace()
+                    .add(Flag.intFlag("FreqInlineSize", 0, 10000, 325))
+                    .add(Flag.intFlag("InlineSmallCode", 0, 100000, 1000))
+                    .add(Flag.intFlag("MaxInlineLevel", 0, 100, 9))
+                    .add(Flag.intFlag("MaxInlineSize", 0, 10000, 35))
+                    .add(Flag.intFlag("MaxRecursiveInlineLevel", 0, 100, 1))
+                    .add(Flag.intFlag("MinInliningThreshold", 0, 100000, 250));
+        }
+
+        /**
+         * 在内联参数的基础上，再加上 GC、堆大小、TLAB、编译阈值和向量化等参数。
+         * 不认识的参数会让 JVM 启动失败，只会得到一个最低分，不会中断调优。
+         */
+        public static SearchSpace full() {
+            return inlining()
+                    .add(Flag.choiceFlag("GC", "-XX:+UseG1GC", "-XX:+UseParallelGC", "-XX:+UseSerialGC"))
+                    .add(Flag.sizeFlag("-Xmx", 64, 8192, 1024))
+                    .add(Flag.sizeFlag("-Xmn", 16, 2048, 256))
+                    .add(Flag.boolFlag("ResizeTLAB", true))
+                    .add(Flag.intFlag("TLABWasteTargetPercent", 1, 100, 1))
+                    .add(Flag.intFlag("TieredStopAtLevel", 1, 4, 4))
+                    .add(Flag.intFlag("Tier4InvocationThreshold", 100, 100000, 5000))
+                    .add(Flag.intFlag("Tier4CompileThreshold", 100, 100000, 15000))
+                    .add(Flag.boolFlag("UseSuperWord", true))
+                    .add(Flag.boolFlag("OptimizeStringConcat", true));
         }
     }
 
     /**
      * 染色体：对个题信息进行编码
+     * <p>
+     * 每个基因对应 {@link SearchSpace} 中的一个参数。
      */
     public static class Chromosome implements Comparable<Chromosome> {
 
@@ -174,16 +1023,37 @@ public class JMHSample_25_API_GA {
         // 基本选项
         final Options baseOpts;
 
-        // 当前 HotSpot 默认选项
-        int freqInlineSize = 325;
-        int inlineSmallCode = 1000;
-        int maxInlineLevel = 9;
-        int maxInlineSize = 35;
-        int maxRecursiveInlineLevel = 1;
-        int minInliningThreshold = 250;
+        final SearchSpace space;
+        final int[] genes;
+
+        // 测量预算的标签，不同预算下的分数不能混用，参见 {@link SuccessiveHalving}
+        String budget = "";
 
-        public Chromosome(Options baseOpts) {
+        /**
+         * 所有参数都取默认值。
+         */
+        public Chromosome(Options baseOpts, SearchSpace space) {
             this.baseOpts = baseOpts;
+            this.space = space;
+            this.genes = new int[space.size()];
+            for (int i = 0; i < genes.length; i++) {
+                genes[i] = space.flags.get(i).defaultValue;
+            }
+        }
+
+        private Chromosome(Options baseOpts, SearchSpace space, int[] genes) {
+            this.baseOpts = baseOpts;
+            this.space = space;
+            this.genes = genes;
+        }
+
+        /**
+         * 同样的参数，换一套测量预算，分数需要重新计算。
+         */
+        public Chromosome withBudget(Options opts, String budget) {
+            Chromosome result = new Chromosome(opts, space, genes.clone());
+            result.budget = budget;
+            return result;
         }
 
         public double score() {
@@ -192,24 +1062,38 @@ public class JMHSample_25_API_GA {
                 return score;
             }
 
+            score = measure(baseOpts).score;
+            return score;
+        }
+
+        /**
+         * 以 opts 为基本选项运行一次基准测试，返回分数和误差。
+         * {@link Evaluator} 会传入绑定了 CPU 的选项。
+         */
+        Fitness measure(Options opts) {
             try {
                 // 根据当前个体的编码添加选项
                 //  a) 添加基本选项
                 //  b) 添加 JVM 参数，使用字符串解析写起来短一点
                 Options theseOpts = new OptionsBuilder()
-                        .parent(baseOpts)
+                        .parent(opts)
                         .jvmArgs(toString().split("[ ]"))
                         .build();
 
                 // 运行基准测试获取结果
                 RunResult runResult = new Runner(theseOpts).runSingle();
-                score = runResult.getPrimaryResult().getScore();
+                return Fitness.of(runResult.getPrimaryResult());
             } catch (RunnerException e) {
                 // 个体参数太差 JVM 都看不下去了
-                score = Double.MIN_VALUE;
+                return Fitness.FAILED;
             }
+        }
 
-            return score;
+        /**
+         * 缓存用的 key，带上测量预算。
+         */
+        String key() {
+            return budget.isEmpty() ? toString() : toString() + " " + budget;
         }
 
         @Override
@@ -220,12 +1104,14 @@ public class JMHSample_25_API_GA {
 
         @Override
         public String toString() {
-            return "-XX:FreqInlineSize=" + freqInlineSize +
-                    " -XX:InlineSmallCode=" + inlineSmallCode +
-                    " -XX:MaxInlineLevel=" + maxInlineLevel +
-                    " -XX:MaxInlineSize=" + maxInlineSize +
-                    " -XX:MaxRecursiveInlineLevel=" + maxRecursiveInlineLevel +
-                    " -XX:MinInliningThreshold=" + minInliningThreshold;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < genes.length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(space.flags.get(i).render.apply(genes[i]));
+            }
+            return sb.toString();
         }
 
         public Chromosome crossover(Chromosome other) {
@@ -234,56 +1120,21 @@ public class JMHSample_25_API_GA {
 
             final double CROSSOVER_PROB = 0.1;
 
-            Chromosome result = new Chromosome(baseOpts);
-
-            result.freqInlineSize = (Math.random() < CROSSOVER_PROB) ?
-                    this.freqInlineSize : other.freqInlineSize;
-
-            result.inlineSmallCode = (Math.random() < CROSSOVER_PROB) ?
-                    this.inlineSmallCode : other.inlineSmallCode;
-
-            result.maxInlineLevel = (Math.random() < CROSSOVER_PROB) ?
-                    this.maxInlineLevel : other.maxInlineLevel;
-
-            result.maxInlineSize = (Math.random() < CROSSOVER_PROB) ?
-                    this.maxInlineSize : other.maxInlineSize;
-
-            result.maxRecursiveInlineLevel = (Math.random() < CROSSOVER_PROB) ?
-                    this.maxRecursiveInlineLevel : other.maxRecursiveInlineLevel;
-
-            result.minInliningThreshold = (Math.random() < CROSSOVER_PROB) ?
-                    this.minInliningThreshold : other.minInliningThreshold;
-
-            return result;
+            int[] result = new int[genes.length];
+            for (int i = 0; i < genes.length; i++) {
+                result[i] = (Math.random() < CROSSOVER_PROB) ? this.genes[i] : other.genes[i];
+            }
+            return new Chromosome(baseOpts, space, result);
         }
 
         public Chromosome mutate() {
             // 进行突变
-            // 虽然这是一种非常菜的突变方法，但是还是有点用。
 
-            Chromosome result = new Chromosome(baseOpts);
-
-            result.freqInlineSize = (int) randomChange(freqInlineSize);
-            result.inlineSmallCode = (int) randomChange(inlineSmallCode);
-            result.maxInlineLevel = (int) randomChange(maxInlineLevel);
-            result.maxInlineSize = (int) randomChange(maxInlineSize);
-            result.maxRecursiveInlineLevel = (int) randomChange(maxRecursiveInlineLevel);
-            result.minInliningThreshold = (int) randomChange(minInliningThreshold);
-
-            return result;
-        }
-
-        private double randomChange(double v) {
-            final double MUTATE_PROB = 0.5;
-            if (Math.random() < MUTATE_PROB) {
-                if (Math.random() < 0.5) {
-                    return v / (Math.random() * 2);
-                } else {
-                    return v * (Math.random() * 2);
-                }
-            } else {
-                return v;
+            int[] result = new int[genes.length];
+            for (int i = 0; i < genes.length; i++) {
+                result[i] = space.flags.get(i).mutate(genes[i]);
             }
+            return new Chromosome(baseOpts, space, result);
         }
 
         public double getScore() {
@@ -1,5 +1,6 @@
 package com.dawnop.benchmark;
 
+import com.dawnop.benchmark.JMHSample_50_ObjectPool.ObjectPool;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
@@ -7,9 +8,7 @@ import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 
 
@@ -57,12 +56,15 @@ public class JMHSample_29_StatesDAG {
     @State(Scope.Benchmark)
     public static class Shared {
         List<Counter> all;
-        Queue<Counter> available;
+        ObjectPool<Counter> available;
 
         /**
          * Shared 维护了一堆的 Counter，运行的时候会把它们 poll 出来，送给 Local。
          * setup 方法只会调用一次，初始化完成所有 @State。
          * 后续 Local 方法会间接地获取 Shared 中的 Counter 方法。
+         * <p>
+         * 分发用的是 {@link JMHSample_50_ObjectPool} 的无锁对象池，
+         * 线程很多的时候 getMine 不用排队拿同一把锁。
          */
         @Setup
         public synchronized void setup() {
@@ -71,8 +73,7 @@ public class JMHSample_29_StatesDAG {
                 all.add(new Counter());
             }
 
-            available = new LinkedList<>();
-            available.addAll(all);
+            available = new ObjectPool<>(all);
         }
 
         @TearDown
@@ -82,8 +83,8 @@ public class JMHSample_29_StatesDAG {
             }
         }
 
-        public synchronized Counter getMine() {
-            return available.poll();
+        public Counter getMine() {
+            return available.acquire();
         }
     }
 
@@ -1,16 +1,23 @@
 package com.dawnop.benchmark;
 
 import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 import org.openjdk.jmh.runner.options.TimeValue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
 
+import static java.lang.Integer.getInteger;
+
 
 /**
  * JMH 还可以基准测试中的检测线程是否处于 stuck （长期处于某一任务）状态，
@@ -25,6 +32,11 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * 这个例子是 {@link JMHSample_18_Control} 的变体，
  * 但是没有显式的 Control 对象。看看它是如何优雅地中断线程的。
+ * <p>
+ * 除了 ArrayBlockingQueue，还可以用 @Param 换成别的队列比一比：
+ * JDK 的 {@link LinkedBlockingQueue}、{@link LinkedTransferQueue}，
+ * 以及 {@link JMHSample_45_RingQueues} 里的无锁环形队列 spsc、mpsc、mpmc，
+ * 环形队列还可以选择阻塞 (block)、自旋 (spin)、yield 三种等待方式。
  */
 
 
@@ -34,11 +46,57 @@ import java.util.concurrent.TimeUnit;
 public class JMHSample_30_Interrupts {
 
 
+    /**
+     * 默认只跑 JDK 的队列，环形队列用 -p impl=spsc,mpsc,mpmc 选，main 里会按线程比例挑能跑的。
+     */
+    @Param({"ABQ", "LBQ", "LTQ"})
+    private String impl;
+
+    /**
+     * 只对环形队列有效。
+     */
+    @Param({"block"})
+    private String wait;
+
+    /**
+     * LinkedTransferQueue 是无界的，忽略这个参数。mpmc 至少要 2。
+     */
+    @Param({"1"})
+    private int capacity;
+
     private BlockingQueue<Integer> q;
 
+    /**
+     * spsc 和 mpsc 在多个生产者（或者多个消费者）下会丢元素、读到重复的元素，
+     * 线程数不满足条件的时候直接让 setup 失败，而不是给出一个错的结果。
+     * mpmc 的容量不能是 1，同样直接失败，不会偷偷换成容量 2 的队列。
+     * 组内方法按名字排序，put 在前，take 在后。
+     */
     @Setup
-    public void setup() {
-        q = new ArrayBlockingQueue<>(1);
+    public void setup(BenchmarkParams params) {
+        int[] groups = params.getThreadGroups();
+        int producers = groups[0];
+        int consumers = groups[1];
+        if ("spsc".equals(impl) && (producers != 1 || consumers != 1)) {
+            throw new IllegalStateException("spsc needs exactly 1 producer and 1 consumer, got "
+                    + producers + ":" + consumers);
+        }
+        if ("mpsc".equals(impl) && consumers != 1) {
+            throw new IllegalStateException("mpsc needs exactly 1 consumer, got " + consumers);
+        }
+        switch (impl) {
+            case "ABQ":
+                q = new ArrayBlockingQueue<>(capacity);
+                break;
+            case "LBQ":
+                q = new LinkedBlockingQueue<>(capacity);
+                break;
+            case "LTQ":
+                q = new LinkedTransferQueue<>();
+                break;
+            default:
+                q = JMHSample_45_RingQueues.create(impl, capacity, wait);
+        }
     }
 
     @Group("Q")
@@ -53,15 +111,48 @@ public class JMHSample_30_Interrupts {
         q.put(42);
     }
 
+    /**
+     * 依次用不同的生产者:消费者比例跑一遍。
+     * threadGroups 的顺序和组内方法名的顺序一致，也就是 put 在前，take 在后。
+     * <p>
+     * spsc 只能有一个生产者和一个消费者，mpsc 只能有一个消费者，不满足条件的比例就跳过它们，
+     * 否则 setup 会失败。-Dcapacity=N 设置队列容量，默认是 1，这时跳过 mpmc。
+     */
     public static void main(String[] args) throws RunnerException {
-        Options opt = new OptionsBuilder()
-                .include(JMHSample_30_Interrupts.class.getSimpleName())
-                .threads(2)
-                .forks(5)
-                .timeout(TimeValue.seconds(10))
-                .build();
-
-        new Runner(opt).run();
+        int capacity = getInteger("capacity", 1);
+        int[][] ratios = {{1, 1}, {1, 3}, {3, 1}, {2, 2}};
+        for (int[] ratio : ratios) {
+            int producers = ratio[0];
+            int consumers = ratio[1];
+
+            List<String> rings = new ArrayList<>();
+            if (producers == 1 && consumers == 1) {
+                rings.add("spsc");
+            }
+            if (consumers == 1) {
+                rings.add("mpsc");
+            }
+            if (capacity >= 2) {
+                rings.add("mpmc");
+            }
+
+            Options jdk = new OptionsBuilder()
+                    .include(JMHSample_30_Interrupts.class.getSimpleName())
+                    .threadGroups(producers, consumers)
+                    .param("impl", "ABQ", "LBQ", "LTQ")
+                    .param("capacity", String.valueOf(capacity))
+                    .forks(5)
+                    .timeout(TimeValue.seconds(10))
+                    .build();
+            new Runner(jdk).run();
+
+            Options ring = new OptionsBuilder()
+                    .parent(jdk)
+                    .param("impl", rings.toArray(new String[0]))
+                    .param("wait", "block", "spin", "yield")
+                    .build();
+            new Runner(ring).run();
+        }
     }
 
 }
\ No newline at end of file
@@ -1,23 +1,35 @@
 package com.dawnop.benchmark;
 
 import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
 import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
 import org.openjdk.jmh.profile.ClassloaderProfiler;
 import org.openjdk.jmh.profile.GCProfiler;
-import org.openjdk.jmh.profile.LinuxPerfProfiler;
+import org.openjdk.jmh.profile.LinuxPerfNormProfiler;
+import org.openjdk.jmh.profile.ProfilerException;
 import org.openjdk.jmh.profile.StackProfiler;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 这个例子用来介绍分析器（profiler）。
@@ -39,20 +51,325 @@ public class JMHSample_35_Profilers {
      * ================================ MAPS BENCHMARK ================================
      */
 
+    /**
+     * 除了 HashMap 和 TreeMap，还有两种不装箱的 int 到 int 的 map：
+     * <ul>
+     * <li> inthash：开放寻址、线性探测，key 和 value 交错放在一个 int[] 里；
+     * <li> intsorted：按 key 排好序的两个 int[]，二分查找；
+     * <li> offheap：和 inthash 一样的开放寻址，但槽位放在堆外的 direct ByteBuffer 里，堆上只有几个对象。
+     * </ul>
+     * key 是 [1, size)，size 从 256 一直到 16M，大的已经远远超出 LLC 了。
+     * test 按顺序查所有的 key，和原来一样，每次操作的次数随 size 变化；
+     * random 在整个范围里随机查 256 个 key，每次操作的工作量固定，更容易看出缓存缺失的影响。
+     * 注意 Integer 的 hash 就是它本身，顺序查找时 HashMap 的桶也是顺序访问的，
+     * 而 inthash 把 key 打散了，所以 size 大的时候 test 反而是 HashMap 占便宜。
+     * <p>
+     * 16M 个装箱的 key 要 1GB 以上的堆，所以 fork 出来的 JVM 加了 -Xmx4g。
+     * <p>
+     * 每次 trial 结束时打印一下 GC 之后的堆占用和堆外占用，配合 GCProfiler 看：
+     * 堆上的 map 越大，堆占用和 GC 时间越大；offheap 不管多大，堆占用和 GC 都基本不变。
+     */
     @State(Scope.Thread)
     @Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
     @Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
-    @Fork(3)
+    @Fork(value = 3, jvmArgsAppend = "-Xmx4g")
     @BenchmarkMode(Mode.AverageTime)
     @OutputTimeUnit(TimeUnit.NANOSECONDS)
     public static class Maps {
+
+        /**
+         * int 到 int 的 map，不存在的 key 返回 0。
+         */
+        public interface IntIntMap {
+            int get(int key);
+
+            void put(int key, int value);
+
+            int size();
+        }
+
+        /**
+         * 开放寻址的 int 到 int 的 hash map，槽位 2i 放 key，2i + 1 放 value，
+         * 一次查找通常只碰一个 cache line。
+         * 空槽位的 key 是 0，所以 key 为 0 的那一项单独存放。
+         * 装载因子不超过 0.5，超过了就扩容一倍。
+         */
+        public static class IntHashMap implements IntIntMap {
+            private int[] table;
+            private int mask;
+            private int size;
+            private boolean hasZero;
+            private int zeroValue;
+
+            public IntHashMap(int expected) {
+                int capacity = 2;
+                while (capacity < 2 * expected) {
+                    capacity <<= 1;
+                }
+                table = new int[2 * capacity];
+                mask = capacity - 1;
+            }
+
+            private static int mix(int key) {
+                int h = key * 0x9E3779B9;
+                return h ^ (h >>> 16);
+            }
+
+            @Override
+            public int get(int key) {
+                if (key == 0) {
+                    return hasZero ? zeroValue : 0;
+                }
+                int[] t = table;
+                for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                    int k = t[2 * i];
+                    if (k == key) {
+                        return t[2 * i + 1];
+                    }
+                    if (k == 0) {
+                        return 0;
+                    }
+                }
+            }
+
+            @Override
+            public void put(int key, int value) {
+                if (key == 0) {
+                    if (!hasZero) {
+                        hasZero = true;
+                        size++;
+                    }
+                    zeroValue = value;
+                    return;
+                }
+                if (insert(table, mask, key, value)) {
+                    size++;
+                    if (2 * size > mask + 1) {
+                        grow();
+                    }
+                }
+            }
+
+            /**
+             * 返回 true 表示插入了新的 key。
+             */
+            private static boolean insert(int[] t, int mask, int key, int value) {
+                for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                    int k = t[2 * i];
+                    if (k == key) {
+                        t[2 * i + 1] = value;
+                        return false;
+                    }
+                    if (k == 0) {
+                        t[2 * i] = key;
+                        t[2 * i + 1] = value;
+                        return true;
+                    }
+                }
+            }
+
+            private void grow() {
+                int[] old = table;
+                int newMask = 2 * (mask + 1) - 1;
+                int[] t = new int[4 * (mask + 1)];
+                for (int i = 0; i < old.length; i += 2) {
+                    if (old[i] != 0) {
+                        insert(t, newMask, old[i], old[i + 1]);
+                    }
+                }
+                table = t;
+                mask = newMask;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }
+
+        /**
+         * 按 key 排序的数组，二分查找。
+         * 按顺序插入只是追加到末尾，乱序插入要移动后面的元素。
+         */
+        public static class IntSortedMap implements IntIntMap {
+            private int[] keys;
+            private int[] values;
+            private int size;
+
+            public IntSortedMap(int expected) {
+                keys = new int[Math.max(1, expected)];
+                values = new int[keys.length];
+            }
+
+            @Override
+            public int get(int key) {
+                int i = Arrays.binarySearch(keys, 0, size, key);
+                return i >= 0 ? values[i] : 0;
+            }
+
+            @Override
+            public void put(int key, int value) {
+                int i = size > 0 && keys[size - 1] < key ? -(size + 1) : Arrays.binarySearch(keys, 0, size, key);
+                if (i >= 0) {
+                    values[i] = value;
+                    return;
+                }
+                i = -(i + 1);
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, 2 * size);
+                    values = Arrays.copyOf(values, 2 * size);
+                }
+                System.arraycopy(keys, i, keys, i + 1, size - i);
+                System.arraycopy(values, i, values, i + 1, size - i);
+                keys[i] = key;
+                values[i] = value;
+                size++;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }
+
+        /**
+         * 放在堆外的开放寻址 hash map，每个槽位 8 字节：key 和 value 各一个 int，本机字节序。
+         * 一个 ByteBuffer 最多 2GB，所以槽位分成多段，每段 2^27 个槽位 (1GB)，总共最多 2^30 个槽位。
+         * 其他和 {@link IntHashMap} 一样。
+         * <p>
+         * 堆外内存由 ByteBuffer 被回收时释放，受 -XX:MaxDirectMemorySize 限制。
+         */
+        public static class OffHeapIntMap implements IntIntMap {
+            static final int SEGMENT_SHIFT = 27;
+            static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+            static final int MAX_SLOTS = 1 << 30;
+
+            private ByteBuffer[] segments;
+            private int mask;
+            private int size;
+            private boolean hasZero;
+            private int zeroValue;
+
+            public OffHeapIntMap(int expected) {
+                int capacity = 2;
+                while (capacity < 2L * expected && capacity < MAX_SLOTS) {
+                    capacity <<= 1;
+                }
+                segments = allocate(capacity);
+                mask = capacity - 1;
+            }
+
+            private static ByteBuffer[] allocate(int slots) {
+                int perSegment = Math.min(slots, 1 << SEGMENT_SHIFT);
+                ByteBuffer[] result = new ByteBuffer[slots / perSegment];
+                for (int i = 0; i < result.length; i++) {
+                    // allocateDirect 保证内容是 0，也就是全部是空槽位
+                    result[i] = ByteBuffer.allocateDirect(perSegment * 8).order(ByteOrder.nativeOrder());
+                }
+                return result;
+            }
+
+            private static int mix(int key) {
+                int h = key * 0x9E3779B9;
+                return h ^ (h >>> 16);
+            }
+
+            private static int offset(int slot) {
+                return (slot & SEGMENT_MASK) << 3;
+            }
+
+            @Override
+            public int get(int key) {
+                if (key == 0) {
+                    return hasZero ? zeroValue : 0;
+                }
+                ByteBuffer[] s = segments;
+                for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                    ByteBuffer b = s[i >>> SEGMENT_SHIFT];
+                    int k = b.getInt(offset(i));
+                    if (k == key) {
+                        return b.getInt(offset(i) + 4);
+                    }
+                    if (k == 0) {
+                        return 0;
+                    }
+                }
+            }
+
+            @Override
+            public void put(int key, int value) {
+                if (key == 0) {
+                    if (!hasZero) {
+                        hasZero = true;
+                        size++;
+                    }
+                    zeroValue = value;
+                    return;
+                }
+                if (insert(segments, mask, key, value)) {
+                    size++;
+                    if (2L * size > mask + 1L) {
+                        grow();
+                    }
+                }
+            }
+
+            private static boolean insert(ByteBuffer[] s, int mask, int key, int value) {
+                for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                    ByteBuffer b = s[i >>> SEGMENT_SHIFT];
+                    int k = b.getInt(offset(i));
+                    if (k == key) {
+                        b.putInt(offset(i) + 4, value);
+                        return false;
+                    }
+                    if (k == 0) {
+                        b.putInt(offset(i), key);
+                        b.putInt(offset(i) + 4, value);
+                        return true;
+                    }
+                }
+            }
+
+            private void grow() {
+                int capacity = mask + 1;
+                if (capacity >= MAX_SLOTS) {
+                    throw new IllegalStateException("Off-heap map is full: " + size);
+                }
+                ByteBuffer[] t = allocate(2 * capacity);
+                int newMask = 2 * capacity - 1;
+                for (int i = 0; i < capacity; i++) {
+                    ByteBuffer b = segments[i >>> SEGMENT_SHIFT];
+                    int k = b.getInt(offset(i));
+                    if (k != 0) {
+                        insert(t, newMask, k, b.getInt(offset(i) + 4));
+                    }
+                }
+                segments = t;
+                mask = newMask;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            public long offHeapBytes() {
+                return 8L * (mask + 1);
+            }
+        }
+
         private Map<Integer, Integer> map;
+        private IntIntMap ints;
 
-        @Param({"hashmap", "treemap"})
+        @Param({"hashmap", "treemap", "inthash", "intsorted", "offheap"})
         private String type;
 
+        @Param({"256", "4096", "65536", "1048576", "16777216"})
+        private int size;
+
         private int begin;
         private int end;
+        private int[] probes;
 
         @Setup
         public void setup() {
@@ -63,36 +380,99 @@ public class JMHSample_35_Profilers {
                 case "treemap":
                     map = new TreeMap<>();
                     break;
+                case "inthash":
+                    ints = new IntHashMap(size);
+                    break;
+                case "intsorted":
+                    ints = new IntSortedMap(size);
+                    break;
+                case "offheap":
+                    ints = new OffHeapIntMap(size);
+                    break;
                 default:
                     throw new IllegalStateException("Unknown type: " + type);
             }
 
             begin = 1;
-            end = 256;
+            end = size;
             for (int i = begin; i < end; i++) {
-                map.put(i, i);
+                if (ints != null) {
+                    ints.put(i, i);
+                } else {
+                    map.put(i, i);
+                }
+            }
+
+            Random r = new Random(42);
+            probes = new int[256];
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = begin + r.nextInt(end - begin);
             }
         }
 
+        @TearDown(Level.Trial)
+        public void footprint() {
+            System.gc();
+            Runtime rt = Runtime.getRuntime();
+            long heap = rt.totalMemory() - rt.freeMemory();
+            long offHeap = ints instanceof OffHeapIntMap ? ((OffHeapIntMap) ints).offHeapBytes() : 0;
+            System.out.printf("%n%s, %d keys: heap used %d MB, off-heap %d MB%n",
+                    type, size, heap >> 20, offHeap >> 20);
+        }
+
         @Benchmark
         public void test(Blackhole bh) {
+            if (ints != null) {
+                for (int i = begin; i < end; i++) {
+                    bh.consume(ints.get(i));
+                }
+                return;
+            }
             for (int i = begin; i < end; i++) {
                 bh.consume(map.get(i));
             }
         }
 
+        @Benchmark
+        public void random(Blackhole bh) {
+            if (ints != null) {
+                for (int k : probes) {
+                    bh.consume(ints.get(k));
+                }
+                return;
+            }
+            for (int k : probes) {
+                bh.consume(map.get(k));
+            }
+        }
+
+        /**
+         * 第二轮只测 offheap，2.5 亿个 key，堆外要 4GB。
+         * 这里的 jvmArgsAppend 会替换掉 @Fork 上的，所以 -Xmx4g 也要再写一遍。
+         */
         public static void main(String[] args) throws RunnerException {
             Options opt = new OptionsBuilder()
                     .include(JMHSample_35_Profilers.Maps.class.getSimpleName())
                     .addProfiler(StackProfiler.class)
-//                    .addProfiler(GCProfiler.class)
+                    .addProfiler(GCProfiler.class)
                     .build();
 
             new Runner(opt).run();
+
+            Options huge = new OptionsBuilder()
+                    .include(JMHSample_35_Profilers.Maps.class.getSimpleName())
+                    .param("type", "offheap")
+                    .param("size", "268435456")
+                    .forks(1)
+                    .jvmArgsAppend("-Xmx4g", "-XX:MaxDirectMemorySize=8g")
+                    .addProfiler(GCProfiler.class)
+                    .build();
+
+            new Runner(huge).run();
         }
 
         /*
-            运行之后会有如下的结果
+            运行之后会有如下的结果（size = 256 的 test）
 
               Benchmark                              (type)  Mode  Cnt     Score    Error   Units
               JMHSample_35_Profilers.Maps.test     hashmap  avgt    5  1553.201 ±   6.199   ns/op
@@ -177,7 +557,7 @@ public class JMHSample_35_Profilers {
          * 简单的类加载器，只能重复加载同一个类。
          */
         public static class XLoader extends URLClassLoader {
-            private static final byte[] X_BYTECODE = new byte[]{
+            static final byte[] X_BYTECODE = new byte[]{
                     (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0x00, 0x00, 0x00, 0x34, 0x00, 0x0D, 0x0A, 0x00, 0x03, 0x00,
                     0x0A, 0x07, 0x00, 0x0B, 0x07, 0x00, 0x0C, 0x01, 0x00, 0x06, 0x3C, 0x69, 0x6E, 0x69, 0x74, 0x3E, 0x01, 0x00, 0x03,
                     0x28, 0x29, 0x56, 0x01, 0x00, 0x04, 0x43, 0x6F, 0x64, 0x65, 0x01, 0x00, 0x0F, 0x4C, 0x69, 0x6E, 0x65, 0x4E, 0x75,
@@ -256,6 +636,23 @@ public class JMHSample_35_Profilers {
      * ================================ ATOMIC LONG BENCHMARK ================================
      */
 
+    /**
+     * 除了原来的 incrementAndGet，再比较几种计数的方式，所有线程共享同一个 Atomic：
+     * <ul>
+     * <li> getAndAdd：和 incrementAndGet 一样是一条 lock xadd，只是返回旧值；
+     * <li> fieldUpdater：普通对象里的 volatile long 字段，通过 {@link AtomicLongFieldUpdater} 原子地加一；
+     * <li> lazySet：每个线程只写自己的一格 ({@link JMHSample_49_PaddedLongArray.PaddedLongArray})，
+     *      单写者不需要 CAS，lazySet 也不需要 StoreLoad 屏障；
+     * <li> adder：{@link LongAdder}，冲突了就分散到多个 cell 上；
+     * <li> opaque、releaseAcquire：同样是每个线程只写自己的计数，
+     *      通过 VarHandle 的 getOpaque/setOpaque 和 getAcquire/setRelease 读了再写，
+     *      比 volatile 弱，不保证顺序但保证可见 (opaque)，或只保证单向的顺序 (release/acquire)。
+     * </ul>
+     * VarHandle 是用 {@link Platform#varHandle} 反射拿到的，Java 8 上没有，这两个基准测试会被跳过。
+     * <p>
+     * main 把线程数从 1 翻倍到 CPU 数。perf 可用的时候加上 perfnorm，
+     * 每个操作的 cycles、instructions、cache-misses 一目了然；不可用时只有时间。
+     */
     @State(Scope.Benchmark)
     @Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
     @Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
@@ -263,11 +660,42 @@ public class JMHSample_35_Profilers {
     @BenchmarkMode(Mode.AverageTime)
     @OutputTimeUnit(TimeUnit.NANOSECONDS)
     public static class Atomic {
+        private static final AtomicLongFieldUpdater<Atomic> FIELD =
+                AtomicLongFieldUpdater.newUpdater(Atomic.class, "field");
+
+        private static final MethodHandle GET_OPAQUE = Platform.varHandle(MethodHandles.lookup(),
+                Slot.class, "value", "GET_OPAQUE", MethodType.methodType(long.class, Slot.class));
+        private static final MethodHandle SET_OPAQUE = Platform.varHandle(MethodHandles.lookup(),
+                Slot.class, "value", "SET_OPAQUE", MethodType.methodType(void.class, Slot.class, long.class));
+        private static final MethodHandle GET_ACQUIRE = Platform.varHandle(MethodHandles.lookup(),
+                Slot.class, "value", "GET_ACQUIRE", MethodType.methodType(long.class, Slot.class));
+        private static final MethodHandle SET_RELEASE = Platform.varHandle(MethodHandles.lookup(),
+                Slot.class, "value", "SET_RELEASE", MethodType.methodType(void.class, Slot.class, long.class));
+
         private AtomicLong n;
+        private volatile long field;
+        private LongAdder adder;
+        private JMHSample_49_PaddedLongArray.PaddedLongArray slots;
 
         @Setup
-        public void setup() {
+        public void setup(BenchmarkParams params) {
             n = new AtomicLong();
+            adder = new LongAdder();
+            slots = new JMHSample_49_PaddedLongArray.PaddedLongArray(params.getThreads(), 128);
+        }
+
+        /**
+         * 每个线程在 lazySet 里写的那一格，以及 opaque、releaseAcquire 用的计数。
+         */
+        @State(Scope.Thread)
+        public static class Slot {
+            int index;
+            long value;
+
+            @Setup
+            public void setup(ThreadParams params) {
+                index = params.getThreadIndex();
+            }
         }
 
         @Benchmark
@@ -275,18 +703,71 @@ public class JMHSample_35_Profilers {
             return n.incrementAndGet();
         }
 
+        @Benchmark
+        public long getAndAdd() {
+            return n.getAndAdd(1);
+        }
 
-        public static void main(String[] args) throws RunnerException {
-            Options opt = new OptionsBuilder()
-                    .include(JMHSample_35_Profilers.Atomic.class.getSimpleName())
-                    .addProfiler(LinuxPerfProfiler.class)
-//                    .addProfiler(LinuxPerfNormProfiler.class)
-//                    .addProfiler(LinuxPerfAsmProfiler.class)
-//                    .addProfiler(WinPerfAsmProfiler.class)
-//                    .addProfiler(DTraceAsmProfiler.class)
-                    .build();
+        @Benchmark
+        public long fieldUpdater() {
+            return FIELD.incrementAndGet(this);
+        }
 
-            new Runner(opt).run();
+        @Benchmark
+        public void lazySet(Slot slot) {
+            slots.add(slot.index, 1);
+        }
+
+        @Benchmark
+        public void adder() {
+            adder.increment();
+        }
+
+        @Benchmark
+        public void opaque(Slot slot) throws Throwable {
+            SET_OPAQUE.invokeExact(slot, (long) GET_OPAQUE.invokeExact(slot) + 1);
+        }
+
+        @Benchmark
+        public void releaseAcquire(Slot slot) throws Throwable {
+            SET_RELEASE.invokeExact(slot, (long) GET_ACQUIRE.invokeExact(slot) + 1);
+        }
+
+        /**
+         * perfnorm 构造的时候会检查 perf 能不能用。
+         */
+        static boolean perfAvailable() {
+            try {
+                new LinuxPerfNormProfiler("");
+                return true;
+            } catch (ProfilerException e) {
+                return false;
+            }
+        }
+
+        public static void main(String[] args) throws RunnerException {
+            boolean perf = perfAvailable();
+            if (!perf) {
+                System.out.println("perf is not available, reporting wall-clock time only");
+            }
+            int cpus = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads <= cpus; threads *= 2) {
+                OptionsBuilder opt = new OptionsBuilder();
+                opt.include(JMHSample_35_Profilers.Atomic.class.getSimpleName())
+                        .threads(threads);
+                if (SET_OPAQUE == null) {
+                    opt.exclude("Atomic\\.(opaque|releaseAcquire)$");
+                }
+                if (perf) {
+                    opt.addProfiler(LinuxPerfNormProfiler.class, "events=cycles,instructions,cache-misses,L1-dcache-load-misses");
+                }
+//                opt.addProfiler(LinuxPerfProfiler.class);
+//                opt.addProfiler(LinuxPerfAsmProfiler.class);
+//                opt.addProfiler(WinPerfAsmProfiler.class);
+//                opt.addProfiler(DTraceAsmProfiler.class);
+
+                new Runner(opt.build()).run();
+            }
         }
         /*
             处理纳秒级别的基准测试需要深入了解运行时、硬件和生成代码。
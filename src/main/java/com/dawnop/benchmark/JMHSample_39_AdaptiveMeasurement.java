@@ -0,0 +1,224 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import static java.lang.Integer.getInteger;
+
+/**
+ * 固定的 @Warmup/@Measurement/@Fork 总是要跑满。
+ * 例如 {@link JMHSample_36_BranchPrediction} 和 {@link JMHSample_37_CacheAccess}，
+ * 每个基准测试 5 个 fork，每个 fork 5 次 1 秒的预热加 5 次 1 秒的测量，一共 50 秒，
+ * 哪怕结果在前几次迭代就已经稳定了。
+ * <p>
+ * 这个例子用 Runner API 写了一个自适应的驱动：
+ * <ul>
+ * <li> a) 一次只跑一个 fork，拿到这个 fork 每次迭代的结果；
+ * <li> b) 丢掉测量阶段开头还没有进入稳态的迭代；
+ * <li> c) 所有 fork 的迭代汇总在一起，99.9% 置信区间的半宽小于目标相对误差时就不再 fork 了。
+ * </ul>
+ * 一个 fork 里的迭代没法中途停下来，所以省下来的是 fork 的次数。
+ * 为了看到 run-to-run 的方差 (参见 {@link JMHSample_13_RunToRun})，至少要跑 minForks 个 fork。
+ * <p>
+ * 注意置信区间的算法和 JMH 一样，把所有迭代当作独立同分布的样本，
+ * 如果 fork 之间的差异很大，区间会偏窄。
+ */
+public class JMHSample_39_AdaptiveMeasurement {
+
+    private final Options baseOpts;
+    private final double targetError;
+    private final int minForks;
+    private final int maxForks;
+
+    /**
+     * @param baseOpts    基本选项，预热和测量的设置都从这里或者注解上来
+     * @param targetError 目标相对误差，例如 0.01 表示置信区间半宽不超过平均值的 1%
+     * @param minForks    最少 fork 次数
+     * @param maxForks    最多 fork 次数，达到了还没收敛就停止
+     */
+    public JMHSample_39_AdaptiveMeasurement(Options baseOpts, double targetError, int minForks, int maxForks) {
+        this.baseOpts = baseOpts;
+        this.targetError = targetError;
+        this.minForks = minForks;
+        this.maxForks = maxForks;
+    }
+
+    /**
+     * 一组参数下的一个基准测试的汇总结果。
+     */
+    public static class Estimate {
+        final ListStatistics samples = new ListStatistics();
+        String unit;
+        int forks;
+        int discarded;
+
+        public double getScore() {
+            return samples.getMean();
+        }
+
+        public double getError() {
+            return samples.getN() > 1 ? samples.getMeanErrorAt(0.999) : Double.NaN;
+        }
+
+        boolean isConverged(double targetError) {
+            double error = getError();
+            return !Double.isNaN(error) && error <= targetError * Math.abs(getScore());
+        }
+    }
+
+    /**
+     * 依次测量 clazz 中的每个 @Benchmark 方法。
+     */
+    public Map<String, Estimate> run(Class<?> clazz) throws RunnerException {
+        Map<String, Estimate> all = new LinkedHashMap<>();
+        for (String method : benchmarks(clazz)) {
+            all.putAll(run(clazz.getName() + "." + method));
+        }
+        return all;
+    }
+
+    /**
+     * 测量一个基准测试方法，@Param 的每组取值单独判断是否收敛。
+     */
+    public Map<String, Estimate> run(String benchmark) throws RunnerException {
+        Map<String, Estimate> estimates = new LinkedHashMap<>();
+
+        Options forkOpts = new OptionsBuilder()
+                .parent(baseOpts)
+                .include(Pattern.quote(benchmark) + "$")
+                .forks(1)
+                .verbosity(VerboseMode.SILENT)
+                .build();
+
+        for (int fork = 1; fork <= maxForks; fork++) {
+            for (RunResult r : new Runner(forkOpts).run()) {
+                Estimate e = estimates.computeIfAbsent(label(r.getParams()), k -> new Estimate());
+                e.unit = r.getPrimaryResult().getScoreUnit();
+                e.forks++;
+                for (BenchmarkResult br : r.getBenchmarkResults()) {
+                    List<Double> scores = new ArrayList<>();
+                    for (IterationResult ir : br.getIterationResults()) {
+                        scores.add(ir.getPrimaryResult().getScore());
+                    }
+                    int skip = steadyState(scores);
+                    e.discarded += skip;
+                    for (double s : scores.subList(skip, scores.size())) {
+                        e.samples.addValue(s);
+                    }
+                }
+            }
+
+            boolean converged = fork >= minForks;
+            for (Estimate e : estimates.values()) {
+                converged &= e.isConverged(targetError);
+            }
+            System.out.printf("%s: fork %d of at most %d%s%n",
+                    benchmark, fork, maxForks, converged ? ", converged" : "");
+            if (converged) {
+                break;
+            }
+        }
+        return estimates;
+    }
+
+    /**
+     * 稳态检测，返回开头需要丢掉的迭代次数。
+     * <p>
+     * 用的是 MSER (Marginal Standard Error Rule)：
+     * 依次尝试丢掉开头的 d 个样本，选 Σ(x - mean)² / (n - d)² 最小的 d。
+     * 开头的样本如果明显偏离后面的稳态，丢掉它们能让这个值变小；
+     * 如果已经是稳态，丢样本只会让分母变小，不划算。
+     * 最多只丢一半，避免把剩下的样本丢光。
+     */
+    static int steadyState(List<Double> xs) {
+        int n = xs.size();
+        int best = 0;
+        double bestStat = Double.POSITIVE_INFINITY;
+        for (int d = 0; d <= n / 2; d++) {
+            int m = n - d;
+            if (m < 2) {
+                break;
+            }
+            double mean = 0;
+            for (int i = d; i < n; i++) {
+                mean += xs.get(i);
+            }
+            mean /= m;
+            double ss = 0;
+            for (int i = d; i < n; i++) {
+                double dx = xs.get(i) - mean;
+                ss += dx * dx;
+            }
+            double stat = ss / ((double) m * m);
+            if (stat < bestStat) {
+                bestStat = stat;
+                best = d;
+            }
+        }
+        return best;
+    }
+
+    private static List<String> benchmarks(Class<?> clazz) {
+        // 按名字排序，和 JMH 的执行顺序保持一致
+        TreeSet<String> names = new TreeSet<>();
+        for (Method m : clazz.getMethods()) {
+            if (m.isAnnotationPresent(Benchmark.class)) {
+                names.add(m.getName());
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    private static String label(BenchmarkParams params) {
+        StringBuilder sb = new StringBuilder(params.getBenchmark());
+        sb.append(' ').append(params.getMode().shortLabel());
+        Collection<String> keys = params.getParamsKeys();
+        for (String k : keys) {
+            sb.append(' ').append(k).append('=').append(params.getParam(k));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 用 -DtargetError=0.01 -DminForks=2 -DmaxForks=5 调整参数。
+     * 误差要求放宽一点，大部分基准测试两三个 fork 就能停下来。
+     */
+    public static void main(String[] args) throws RunnerException {
+        JMHSample_39_AdaptiveMeasurement driver = new JMHSample_39_AdaptiveMeasurement(
+                new OptionsBuilder().build(),
+                Double.parseDouble(System.getProperty("targetError", "0.01")),
+                getInteger("minForks", 2),
+                getInteger("maxForks", 5));
+
+        Map<String, Estimate> results = new LinkedHashMap<>();
+        results.putAll(driver.run(JMHSample_36_BranchPrediction.class));
+        results.putAll(driver.run(JMHSample_37_CacheAccess.class));
+
+        System.out.println();
+        for (Map.Entry<String, Estimate> entry : results.entrySet()) {
+            Estimate e = entry.getValue();
+            System.out.printf("%-70s %3d forks %4d samples (%d discarded) %12.3f ± %10.3f %s%n",
+                    entry.getKey(), e.forks, e.samples.getN(), e.discarded,
+                    e.getScore(), e.getError(), e.unit);
+        }
+    }
+
+}
@@ -0,0 +1,402 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+import static java.lang.Integer.getInteger;
+
+/**
+ * 跑完整套例子时，每个基准测试的 fork 都是一个接一个地跑，
+ * 像 {@link JMHSample_13_RunToRun} 的 @Fork(20)、{@link JMHSample_22_FalseSharing} 的 @Fork(5)。
+ * 在双路的机器上，大部分核心都在围观。
+ * <p>
+ * 不同的 fork 之间没有依赖，完全可以同时跑，前提是它们不能互相干扰。
+ * 这个例子把 CPU 划分成互不重叠的槽位，每个槽位同一时刻只跑一个 fork，
+ * 并通过 taskset 把 fork 出来的 JVM 绑定在槽位上，参见 {@link Platform.Slot}。
+ * 用 -Dslots=numa 可以让每个 NUMA 节点作为一个槽位，这样连内存控制器和 LLC 都不共享。
+ * <p>
+ * 然而槽位之间还是共享内存带宽、散热和睿频，结果是否可信还要检查一下：
+ * 每个基准测试先在其他槽位都空闲的时候跑几个参照 fork (-Drefs，默认 2 个)，
+ * 其余的 fork 并行跑完后，把所有并行 fork 的迭代分数合在一起，和所有参照 fork 的合在一起比较。
+ * 只有统计上有明显差异 ({@link ListStatistics#isDifferent})，并且均值相差超过 {@link #TOLERANCE}，
+ * 才丢掉并行的结果，重新串行跑。
+ * 只看统计上的差异太严格了：迭代次数多的时候，百分之零点几的差别也会被判成“不同”。
+ */
+public class JMHSample_40_ParallelSuite {
+
+    private static final double CONFIDENCE = 0.999;
+
+    /**
+     * 并行和串行的均值相差不到 5% 就认为没有干扰。
+     */
+    private static final double TOLERANCE = 0.05;
+
+    /**
+     * 一个基准测试方法，以及它需要跑的 fork 次数。
+     */
+    static class Bench {
+        final String name;
+        final int forks;
+
+        Bench(String name, int forks) {
+            this.name = name;
+            this.forks = forks;
+        }
+    }
+
+    /**
+     * 一个 fork 的结果：@Param 和 Mode 的每种组合对应一组迭代分数。
+     */
+    static class ForkResult {
+        final Map<String, List<Double>> scores = new TreeMap<>();
+        final Map<String, String> units = new TreeMap<>();
+    }
+
+    private final Options baseOpts;
+    private final BlockingQueue<Platform.Slot> slots;
+    private final ExecutorService pool;
+
+    public JMHSample_40_ParallelSuite(Options baseOpts, List<String> cpuSets) {
+        this.baseOpts = baseOpts;
+        this.slots = new ArrayBlockingQueue<>(cpuSets.size());
+        for (String cpus : cpuSets) {
+            Platform.Slot slot = new Platform.Slot(cpus);
+            slot.verify();
+            slots.add(slot);
+        }
+        if (cpuSets.size() > 1) {
+            System.setProperty("jmh.ignoreLock", "true");
+        }
+        this.pool = Executors.newFixedThreadPool(cpuSets.size());
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * 跑完所有基准测试，返回每个基准测试的所有 fork 的结果。
+     */
+    public Map<String, List<ForkResult>> run(List<Bench> benches, int refs) throws RunnerException {
+        Map<String, List<ForkResult>> results = new LinkedHashMap<>();
+        Map<String, List<ForkResult>> references = new LinkedHashMap<>();
+
+        // 第一步：其他槽位都空闲时，串行跑参照 fork
+        for (Bench b : benches) {
+            List<ForkResult> rs = new ArrayList<>();
+            for (int f = 0; f < Math.min(refs, b.forks); f++) {
+                rs.add(await(Collections.singletonList(submit(b.name))).get(0));
+            }
+            references.put(b.name, rs);
+            results.put(b.name, new ArrayList<>(rs));
+        }
+
+        // 第二步：剩下的 fork 全部丢进槽位里并行跑
+        Map<String, List<Future<ForkResult>>> pending = new LinkedHashMap<>();
+        for (Bench b : benches) {
+            List<Future<ForkResult>> fs = new ArrayList<>();
+            for (int f = references.get(b.name).size(); f < b.forks; f++) {
+                fs.add(submit(b.name));
+            }
+            pending.put(b.name, fs);
+        }
+
+        // 第三步：等所有并行的 fork 都跑完，再和参照 fork 对比
+        Map<String, List<ForkResult>> parallel = new LinkedHashMap<>();
+        for (Bench b : benches) {
+            parallel.put(b.name, await(pending.get(b.name)));
+        }
+
+        // 第四步：有差异的串行重跑，这时其他槽位一定都是空闲的
+        for (Bench b : benches) {
+            List<ForkResult> forks = parallel.get(b.name);
+            List<ForkResult> rs = references.get(b.name);
+            if (isNoisy(rs, forks)) {
+                System.out.println(b.name + ": parallel forks differ from the serial references, re-running serially");
+                forks = new ArrayList<>();
+                for (int f = rs.size(); f < b.forks; f++) {
+                    forks.add(await(Collections.singletonList(submit(b.name))).get(0));
+                }
+            }
+            results.computeIfAbsent(b.name, k -> new ArrayList<>()).addAll(forks);
+        }
+        return results;
+    }
+
+    private Future<ForkResult> submit(String benchmark) {
+        final Options opts = new OptionsBuilder()
+                .parent(baseOpts)
+                .include(Pattern.quote(benchmark) + "$")
+                .forks(1)
+                .verbosity(VerboseMode.SILENT)
+                .build();
+        return pool.submit(() -> {
+            Platform.Slot slot = slots.take();
+            try {
+                return toForkResult(new Runner(slot.apply(opts)).run());
+            } finally {
+                slots.put(slot);
+            }
+        });
+    }
+
+    /**
+     * 按 @Param 和 Mode 的组合，分别把参照 fork 和并行 fork 的迭代分数合在一起比较。
+     */
+    private static boolean isNoisy(List<ForkResult> refs, List<ForkResult> parallel) {
+        Map<String, List<Double>> r = pool(refs);
+        for (Map.Entry<String, List<Double>> e : pool(parallel).entrySet()) {
+            List<Double> rs = r.get(e.getKey());
+            if (rs == null || rs.size() < 2 || e.getValue().size() < 2) {
+                continue;
+            }
+            ListStatistics serial = stats(rs);
+            ListStatistics par = stats(e.getValue());
+            double relative = Math.abs(par.getMean() - serial.getMean()) / Math.abs(serial.getMean());
+            if (relative > TOLERANCE && serial.isDifferent(par, CONFIDENCE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Map<String, List<Double>> pool(List<ForkResult> forks) {
+        Map<String, List<Double>> merged = new TreeMap<>();
+        for (ForkResult fr : forks) {
+            for (Map.Entry<String, List<Double>> s : fr.scores.entrySet()) {
+                merged.computeIfAbsent(s.getKey(), k -> new ArrayList<>()).addAll(s.getValue());
+            }
+        }
+        return merged;
+    }
+
+    private static ForkResult toForkResult(Collection<RunResult> runs) {
+        ForkResult fr = new ForkResult();
+        for (RunResult r : runs) {
+            List<Double> s = new ArrayList<>();
+            for (BenchmarkResult br : r.getBenchmarkResults()) {
+                for (IterationResult ir : br.getIterationResults()) {
+                    s.add(ir.getPrimaryResult().getScore());
+                }
+            }
+            String label = label(r.getParams());
+            fr.scores.put(label, s);
+            fr.units.put(label, r.getPrimaryResult().getScoreUnit());
+        }
+        return fr;
+    }
+
+    private static ListStatistics stats(List<Double> xs) {
+        ListStatistics s = new ListStatistics();
+        for (double x : xs) {
+            s.addValue(x);
+        }
+        return s;
+    }
+
+    private static <T> List<T> await(List<Future<T>> futures) throws RunnerException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RunnerException("Interrupted while running", e);
+        } catch (ExecutionException e) {
+            throw new RunnerException("Fork failed", e.getCause());
+        }
+        return results;
+    }
+
+    private static String label(BenchmarkParams params) {
+        StringBuilder sb = new StringBuilder(params.getMode().shortLabel());
+        for (String k : params.getParamsKeys()) {
+            sb.append(' ').append(k).append('=').append(params.getParam(k));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * ================================ 发现基准测试 ================================
+     */
+
+    /**
+     * 找出 pkg 包里所有带 @Benchmark 方法的类，不管它们是在目录里还是在 jar 里。
+     * JMH 生成的代码在 jmh_generated 子包里，不会被扫到。
+     */
+    static List<Bench> discover(String pkg, Pattern filter) throws IOException, ClassNotFoundException {
+        String path = pkg.replace('.', '/');
+        List<String> classNames = new ArrayList<>();
+        Enumeration<URL> roots = Thread.currentThread().getContextClassLoader().getResources(path);
+        while (roots.hasMoreElements()) {
+            URL root = roots.nextElement();
+            if ("file".equals(root.getProtocol())) {
+                File[] files = new File(root.getFile()).listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        if (f.getName().endsWith(".class")) {
+                            classNames.add(pkg + "." + f.getName().substring(0, f.getName().length() - 6));
+                        }
+                    }
+                }
+            } else if ("jar".equals(root.getProtocol())) {
+                JarFile jar = ((JarURLConnection) root.openConnection()).getJarFile();
+                for (Enumeration<JarEntry> es = jar.entries(); es.hasMoreElements(); ) {
+                    String n = es.nextElement().getName();
+                    if (n.startsWith(path + "/") && n.endsWith(".class") && n.indexOf('/', path.length() + 1) < 0) {
+                        classNames.add(n.substring(0, n.length() - 6).replace('/', '.'));
+                    }
+                }
+            }
+        }
+        Collections.sort(classNames);
+
+        List<Bench> benches = new ArrayList<>();
+        for (String cn : classNames) {
+            Class<?> c = Class.forName(cn, false, Thread.currentThread().getContextClassLoader());
+            if (Modifier.isAbstract(c.getModifiers()) || c.getCanonicalName() == null) {
+                continue;
+            }
+            // 同一个 @Group 里的方法是一个基准测试，名字是组名
+            Map<String, Method> methods = new TreeMap<>();
+            for (Method m : c.getMethods()) {
+                if (m.isAnnotationPresent(Benchmark.class)) {
+                    Group g = m.getAnnotation(Group.class);
+                    methods.putIfAbsent((g != null) ? g.value() : m.getName(), m);
+                }
+            }
+            for (Map.Entry<String, Method> m : methods.entrySet()) {
+                // JMH 的基准测试名用 . 分隔内部类
+                String name = c.getCanonicalName() + "." + m.getKey();
+                if (filter.matcher(name).find()) {
+                    benches.add(new Bench(name, forks(c, m.getValue())));
+                }
+            }
+        }
+        return benches;
+    }
+
+    /**
+     * 方法上的 @Fork 优先于类上的，都没有就是 JMH 默认的 5 次。
+     * @Fork(0) 在这里也按 1 次算，不能让基准测试跑在编排器自己的 JVM 里。
+     */
+    private static int forks(Class<?> c, Method m) {
+        Fork f = m.getAnnotation(Fork.class);
+        for (Class<?> k = c; f == null && k != null; k = k.getSuperclass()) {
+            f = k.getAnnotation(Fork.class);
+        }
+        int forks = (f == null || f.value() < 0) ? 5 : f.value();
+        return Math.max(1, forks);
+    }
+
+    /*
+     * ================================ 划分 CPU ================================
+     */
+
+    /**
+     * 每个 NUMA 节点一个槽位，读不到节点信息时返回空列表。
+     * 只保留当前进程能用的 CPU，一个都用不了的节点跳过。
+     */
+    static List<String> numaSlots() {
+        List<Integer> allowed = Platform.allowedCpus();
+        List<String> slots = new ArrayList<>();
+        File[] nodes = new File("/sys/devices/system/node").listFiles((d, n) -> n.matches("node\\d+"));
+        if (nodes == null) {
+            return slots;
+        }
+        for (File node : nodes) {
+            try {
+                String list = new String(Files.readAllBytes(new File(node, "cpulist").toPath()),
+                        StandardCharsets.UTF_8).trim();
+                List<Integer> cpus = Platform.parseCpuList(list);
+                cpus.retainAll(allowed);
+                if (!cpus.isEmpty()) {
+                    slots.add(Platform.formatCpuList(cpus));
+                }
+            } catch (IOException e) {
+                // 不是 Linux，或者没有权限
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * -Dslots=N 把 CPU 分成 N 份，-Dslots=numa 按 NUMA 节点划分，默认每 4 个核心一个槽位。
+     * -Dinclude=regex 只跑名字匹配的基准测试，-Drefs=N 串行跑 N 个参照 fork，-Drefs=0 跳过噪声检查。
+     */
+    public static void main(String[] args) throws Exception {
+        String slotsProp = System.getProperty("slots", "");
+        List<String> cpuSets = "numa".equals(slotsProp) ? numaSlots() : Collections.emptyList();
+        if (cpuSets.isEmpty()) {
+            int n = slotsProp.matches("\\d+") ? Integer.parseInt(slotsProp)
+                    : Platform.allowedCpus().size() / getInteger("coresPerSlot", 4);
+            cpuSets = Platform.partition(n);
+        }
+
+        List<Bench> benches = discover(JMHSample_40_ParallelSuite.class.getPackage().getName(),
+                Pattern.compile(System.getProperty("include", ".*")));
+        System.out.println("Found " + benches.size() + " benchmarks, running on slots " + cpuSets);
+
+        JMHSample_40_ParallelSuite suite = new JMHSample_40_ParallelSuite(new OptionsBuilder().build(), cpuSets);
+        Map<String, List<ForkResult>> results;
+        try {
+            results = suite.run(benches, getInteger("refs", 2));
+        } finally {
+            suite.shutdown();
+        }
+
+        System.out.println();
+        for (Map.Entry<String, List<ForkResult>> e : results.entrySet()) {
+            Map<String, List<Double>> merged = pool(e.getValue());
+            Map<String, String> units = new TreeMap<>();
+            for (ForkResult fr : e.getValue()) {
+                units.putAll(fr.units);
+            }
+            for (Map.Entry<String, List<Double>> s : merged.entrySet()) {
+                ListStatistics st = stats(s.getValue());
+                System.out.printf("%-70s %-30s %3d forks %14.3f ± %12.3f %s%n",
+                        e.getKey(), s.getKey(), e.getValue().size(), st.getMean(),
+                        st.getN() > 1 ? st.getMeanErrorAt(CONFIDENCE) : Double.NaN, units.get(s.getKey()));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,424 @@
+package com.dawnop.benchmark;
+
+import org.apache.commons.math3.stat.inference.MannWhitneyUTest;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 到目前为止，所有例子的 main 方法都只是把结果打印出来，跑完就扔掉了。
+ * 想知道某次提交有没有让性能变差，就得把每次的结果都存下来，再做比较。
+ * <p>
+ * JMH 自带的 -rf json 可以输出结果，但是一年的 nightly 结果攒下来，光解析 JSON 就要好几分钟。
+ * 这个例子把每个 {@link RunResult} 的所有迭代分数以二进制格式追加到一个文件里，
+ * 读取时把文件分段 mmap 进来，只扫一遍每条记录的头部建立索引，
+ * 迭代分数按需从映射的内存里直接读出来。
+ * 文件是按记录（行）存的，不是按列存的：每条记录的分数是连续的一段 double，
+ * 比较的时候总是要取出一整组分数，按列存并不会少读什么，追加起来反而麻烦。
+ * <p>
+ * 比较两次提交时用的是 Mann-Whitney U 检验，它只看样本的排序，
+ * 不要求分数服从正态分布，对 GC、JIT 带来的离群值也不敏感。
+ */
+public class JMHSample_41_ResultStore {
+
+    /*
+     * 每条记录的格式，所有数字都是大端序：
+     *
+     *   int    记录长度（不含这 4 个字节）
+     *   long   时间戳
+     *   short  字符串长度 + UTF-8 字节：commit、benchmark、mode、params、unit，
+     *          长度是无符号的，超过 65535 字节的字符串在追加时就拒绝掉
+     *   int    样本数 n
+     *   double n 个迭代分数
+     *
+     * 写到一半崩溃的话，最后一条记录是不完整的，它的长度可能超过文件末尾，
+     * 也可能连长度本身都没写完。读的时候检查每条记录的长度和内容是否对得上，
+     * 遇到第一条不完整的记录就停下；追加之前先把文件截断到最后一条完整记录的末尾，
+     * 新的记录不会接在半条记录后面。
+     */
+
+    /**
+     * 最短的记录：时间戳、5 个空字符串、样本数 0。
+     */
+    private static final int MIN_LENGTH = 8 + 5 * 2 + 4;
+
+    /**
+     * 一次映射的大小。一个 MappedByteBuffer 最多只能映射 2GB，攒了几年的结果文件会超过这个大小。
+     */
+    private static final long CHUNK = 64 << 20;
+
+    private static final int MAX_STRING = 0xFFFF;
+
+    /**
+     * 一条记录，即某次提交下某个基准测试一组参数的所有迭代分数。
+     */
+    public static class Entry {
+        final long timestamp;
+        final String commit;
+        final String benchmark;
+        final String mode;
+        final String params;
+        final String unit;
+
+        private final ByteBuffer data;
+        private final int samplesAt;
+        private final int n;
+
+        Entry(long timestamp, String commit, String benchmark, String mode, String params, String unit,
+              ByteBuffer data, int samplesAt, int n) {
+            this.timestamp = timestamp;
+            this.commit = commit;
+            this.benchmark = benchmark;
+            this.mode = mode;
+            this.params = params;
+            this.unit = unit;
+            this.data = data;
+            this.samplesAt = samplesAt;
+            this.n = n;
+        }
+
+        /**
+         * 从映射的内存中读出迭代分数。
+         */
+        public double[] samples() {
+            double[] xs = new double[n];
+            ByteBuffer b = data.duplicate();
+            b.position(samplesAt);
+            b.asDoubleBuffer().get(xs);
+            return xs;
+        }
+
+        String key() {
+            return benchmark + " " + mode + (params.isEmpty() ? "" : " " + params);
+        }
+    }
+
+    private final File file;
+
+    public JMHSample_41_ResultStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 把一次运行的结果追加到文件末尾，同一个基准测试所有 fork 的迭代分数放在一起。
+     */
+    public void append(String commit, Collection<RunResult> results) throws IOException {
+        long now = System.currentTimeMillis();
+        // 先把所有记录都编码好，有放不下的字符串就在写文件之前失败，不会只写进去一半
+        List<ByteBuffer> records = new ArrayList<>();
+        for (RunResult r : results) {
+            List<Double> samples = new ArrayList<>();
+            for (BenchmarkResult br : r.getBenchmarkResults()) {
+                for (IterationResult ir : br.getIterationResults()) {
+                    samples.add(ir.getPrimaryResult().getScore());
+                }
+            }
+
+            BenchmarkParams p = r.getParams();
+            byte[][] strings = {
+                    utf8(commit),
+                    utf8(p.getBenchmark()),
+                    utf8(p.getMode().shortLabel()),
+                    utf8(params(p)),
+                    utf8(r.getPrimaryResult().getScoreUnit()),
+            };
+            int length = 8 + 4 + 8 * samples.size();
+            for (byte[] s : strings) {
+                if (s.length > MAX_STRING) {
+                    throw new IllegalArgumentException("String of " + s.length + " bytes does not fit in a record: "
+                            + new String(s, 0, 64, StandardCharsets.UTF_8) + "...");
+                }
+                length += 2 + s.length;
+            }
+
+            ByteBuffer b = ByteBuffer.allocate(4 + length);
+            b.putInt(length);
+            b.putLong(now);
+            for (byte[] s : strings) {
+                b.putShort((short) s.length);
+                b.put(s);
+            }
+            b.putInt(samples.size());
+            for (double s : samples) {
+                b.putDouble(s);
+            }
+            b.flip();
+            records.add(b);
+        }
+
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = scan(ch, null);
+            if (end < ch.size()) {
+                ch.truncate(end);
+            }
+            ch.position(end);
+            for (ByteBuffer b : records) {
+                while (b.hasRemaining()) {
+                    ch.write(b);
+                }
+            }
+        }
+    }
+
+    /**
+     * 读出所有记录，按写入的顺序排列。
+     */
+    public List<Entry> load() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) {
+            return entries;
+        }
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            scan(ch, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * 从头扫描所有完整的记录，entries 不为 null 时把它们加进去。
+     * 返回最后一条完整记录的末尾位置，后面的就是写了一半的垃圾。
+     * <p>
+     * 文件按 {@link #CHUNK} 分段映射，下一条记录超出当前这一段时，从这条记录的开头重新映射一段，
+     * 每条记录总是完整地落在某一段里，Entry 引用的就是那一段。
+     */
+    private static long scan(FileChannel ch, List<Entry> entries) throws IOException {
+        long size = ch.size();
+        long start = 0;
+        // 映射之后就算关闭了 channel，内存也依然有效
+        MappedByteBuffer data = null;
+        long base = 0;
+        while (size - start >= 4) {
+            if (data == null || start + 4 > base + data.capacity()) {
+                base = start;
+                data = ch.map(FileChannel.MapMode.READ_ONLY, base, Math.min(CHUNK, size - base));
+            }
+            int length = data.getInt((int) (start - base));
+            if (length < MIN_LENGTH || length > size - start - 4 || length > Integer.MAX_VALUE - 4) {
+                return start;
+            }
+            long end = start + 4 + length;
+            if (end > base + data.capacity()) {
+                base = start;
+                data = ch.map(FileChannel.MapMode.READ_ONLY, base, Math.min(Math.max(CHUNK, end - base), size - base));
+            }
+            // 只在这条记录的范围里读，字符串长度不对的话会读过界
+            ByteBuffer r = data.duplicate();
+            r.limit((int) (end - base));
+            r.position((int) (start - base) + 4);
+            try {
+                long timestamp = r.getLong();
+                String commit = readString(r);
+                String benchmark = readString(r);
+                String mode = readString(r);
+                String params = readString(r);
+                String unit = readString(r);
+                int n = r.getInt();
+                if (n < 0 || (long) n * 8 != r.remaining()) {
+                    return start;
+                }
+                if (entries != null) {
+                    entries.add(new Entry(timestamp, commit, benchmark, mode, params, unit, data, r.position(), n));
+                }
+            } catch (BufferUnderflowException e) {
+                return start;
+            }
+            start = end;
+        }
+        return start;
+    }
+
+    /*
+     * ================================ 比较两次提交 ================================
+     */
+
+    /**
+     * 比较结果：中位数的变化，以及 Mann-Whitney U 检验的 p 值。
+     */
+    public static class Comparison {
+        final String key;
+        final String unit;
+        final double baseMedian;
+        final double newMedian;
+        final double pValue;
+        final boolean higherIsBetter;
+
+        Comparison(String key, String unit, double baseMedian, double newMedian, double pValue, boolean higherIsBetter) {
+            this.key = key;
+            this.unit = unit;
+            this.baseMedian = baseMedian;
+            this.newMedian = newMedian;
+            this.pValue = pValue;
+            this.higherIsBetter = higherIsBetter;
+        }
+
+        double change() {
+            return (newMedian / baseMedian - 1) * 100;
+        }
+
+        /**
+         * 差异显著，并且变差了。
+         */
+        boolean isRegression(double alpha) {
+            boolean worse = higherIsBetter ? newMedian < baseMedian : newMedian > baseMedian;
+            return pValue < alpha && worse;
+        }
+    }
+
+    /**
+     * 比较 baseCommit 和 newCommit 都有的基准测试。
+     * 同一次提交跑了好几次的话，所有的样本合在一起。
+     */
+    public static List<Comparison> compare(List<Entry> entries, String baseCommit, String newCommit) {
+        Map<String, double[]> base = collect(entries, baseCommit);
+        Map<String, double[]> next = collect(entries, newCommit);
+
+        Map<String, Entry> meta = new LinkedHashMap<>();
+        for (Entry e : entries) {
+            meta.put(e.key(), e);
+        }
+
+        MannWhitneyUTest test = new MannWhitneyUTest();
+        List<Comparison> result = new ArrayList<>();
+        for (Map.Entry<String, double[]> e : next.entrySet()) {
+            double[] xs = base.get(e.getKey());
+            double[] ys = e.getValue();
+            if (xs == null || xs.length == 0 || ys.length == 0) {
+                continue;
+            }
+            Entry m = meta.get(e.getKey());
+            result.add(new Comparison(e.getKey(), m.unit, median(xs), median(ys),
+                    test.mannWhitneyUTest(xs, ys),
+                    // 只有吞吐量是越大越好，其他模式都是时间，越小越好
+                    "thrpt".equals(m.mode)));
+        }
+        return result;
+    }
+
+    private static Map<String, double[]> collect(List<Entry> entries, String commit) {
+        Map<String, double[]> result = new LinkedHashMap<>();
+        for (Entry e : entries) {
+            if (!e.commit.equals(commit)) {
+                continue;
+            }
+            double[] old = result.get(e.key());
+            double[] add = e.samples();
+            if (old == null) {
+                result.put(e.key(), add);
+            } else {
+                double[] merged = Arrays.copyOf(old, old.length + add.length);
+                System.arraycopy(add, 0, merged, old.length, add.length);
+                result.put(e.key(), merged);
+            }
+        }
+        return result;
+    }
+
+    private static double median(double[] xs) {
+        double[] s = xs.clone();
+        Arrays.sort(s);
+        int n = s.length;
+        return (n % 2 == 1) ? s[n / 2] : (s[n / 2 - 1] + s[n / 2]) / 2;
+    }
+
+    private static String params(BenchmarkParams p) {
+        StringBuilder sb = new StringBuilder();
+        for (String k : p.getParamsKeys()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(k).append('=').append(p.getParam(k));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getShort() & 0xFFFF];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String gitHead() {
+        try {
+            Process p = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").start();
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                String line = r.readLine();
+                return (p.waitFor() == 0 && line != null) ? line.trim() : "unknown";
+            }
+        } catch (IOException e) {
+            return "unknown";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "unknown";
+        }
+    }
+
+    /**
+     * 跑一遍基准测试，以当前的 git 提交（或者 -Dcommit=xxx）为 key 存下来，
+     * 再和文件里上一个提交的结果比较，p 值小于 -Dalpha（默认 0.01）并且变差了的就是性能回退。
+     * <p>
+     * 用 -Dstore=path 指定结果文件。
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        String include = (args.length > 0) ? args[0] : JMHSample_36_BranchPrediction.class.getSimpleName();
+        String commit = System.getProperty("commit", gitHead());
+        double alpha = Double.parseDouble(System.getProperty("alpha", "0.01"));
+        JMHSample_41_ResultStore store = new JMHSample_41_ResultStore(
+                new File(System.getProperty("store", "jmh-results.bin")));
+
+        Options opt = new OptionsBuilder()
+                .include(include)
+                .build();
+        store.append(commit, new Runner(opt).run());
+
+        long start = System.nanoTime();
+        List<Entry> entries = store.load();
+        System.out.printf("Loaded %d entries in %.3f ms%n", entries.size(), (System.nanoTime() - start) / 1e6);
+
+        // 找上一个不同的提交
+        String previous = null;
+        for (Entry e : entries) {
+            if (!e.commit.equals(commit)) {
+                previous = e.commit;
+            }
+        }
+        if (previous == null) {
+            System.out.println("Nothing to compare with yet");
+            return;
+        }
+
+        System.out.printf("Comparing %s against %s%n", commit, previous);
+        for (Comparison c : compare(entries, previous, commit)) {
+            System.out.printf("%-80s %14.3f -> %14.3f %-8s (%+7.2f%%, p = %.4f)%s%n",
+                    c.key, c.baseMedian, c.newMedian, c.unit, c.change(), c.pValue,
+                    c.isRegression(alpha) ? "  REGRESSION" : "");
+        }
+    }
+
+}
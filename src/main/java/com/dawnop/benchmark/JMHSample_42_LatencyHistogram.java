@@ -0,0 +1,292 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JMHSample_02_BenchmarkModes} 中的 {@link Mode#SampleTime} 可以看到耗时的分布，
+ * 但是 JMH 只打印固定的几个百分位，p99.99 以后的尾部基本看不到，
+ * 而 SLO 往往恰恰关心尾部的延迟。
+ * <p>
+ * 这个例子自己记录每次调用的耗时，存进 HdrHistogram 风格的直方图里：
+ * <ul>
+ * <li> a) 桶按对数-线性划分，相对误差不超过 1/128，不管跑多久占用的内存都是固定的；
+ * <li> b) 每个线程一个直方图，记录的时候不用加锁，也没有共享的 cache line；
+ * <li> c) 迭代结束后把各线程的直方图合并起来写到文件里，main 再把所有 fork 的文件合并。
+ * </ul>
+ * 合并后可以得到完整的分布，还可以修正协调遗漏 (coordinated omission)：
+ * 一次操作卡住的时候，本该在这段时间里发起的其他操作都被推迟了，
+ * 闭环测试只会记下一个大的耗时，而不是一连串递减的耗时，尾部延迟因此被严重低估。
+ * 参见 {@link Histogram#correctedFor(long)}。
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(3)
+@State(Scope.Thread)
+public class JMHSample_42_LatencyHistogram {
+
+    /**
+     * 对数-线性直方图。
+     * <p>
+     * 小于 256 的值每个值一个桶；更大的值按最高位分组，每组 128 个桶，
+     * 所以每个桶的宽度不超过桶下界的 1/128。
+     * 覆盖整个 long 的范围也只需要 7296 个桶。
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 8;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+        private final long[] counts = new long[BUCKETS];
+        private long total;
+        private long max;
+
+        static int indexOf(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BUCKET_BITS - 1);
+            int sub = (int) (v >>> shift);
+            return SUB_BUCKETS + (shift - 1) * HALF + (sub - HALF);
+        }
+
+        /**
+         * 桶内的最大值，算百分位时按这个值报告，宁可高估也不低估。
+         */
+        static long highestIn(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            long sub = (index - SUB_BUCKETS) % HALF + HALF;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        public void record(long v) {
+            record(Math.max(0, v), 1);
+        }
+
+        void record(long v, long count) {
+            counts[indexOf(v)] += count;
+            total += count;
+            if (v > max) {
+                max = v;
+            }
+        }
+
+        /**
+         * 记录一次耗时，并补上由于这次操作卡住而没能发起的操作：
+         * 假设操作本应每 expectedInterval 发起一次，那么卡住的这段时间里
+         * 本该还有耗时为 v - interval, v - 2 * interval, ... 的操作。
+         */
+        public void recordCorrected(long v, long expectedInterval) {
+            record(v);
+            if (expectedInterval <= 0) {
+                return;
+            }
+            for (long missing = v - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+                record(missing);
+            }
+        }
+
+        public void add(Histogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * 事后修正协调遗漏，结果和记录时调用 {@link #recordCorrected} 一样。
+         */
+        public Histogram correctedFor(long expectedInterval) {
+            Histogram h = new Histogram();
+            for (int i = 0; i < BUCKETS; i++) {
+                if (counts[i] == 0) {
+                    continue;
+                }
+                long v = Math.min(highestIn(i), max);
+                h.record(v, counts[i]);
+                if (expectedInterval > 0) {
+                    for (long missing = v - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+                        h.record(missing, counts[i]);
+                    }
+                }
+            }
+            return h;
+        }
+
+        /**
+         * @param percentile 0 到 100 之间
+         */
+        public long valueAt(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestIn(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long getTotalCount() {
+            return total;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * 只写非空的桶。
+         */
+        public void writeTo(File file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file.toPath()))) {
+                out.writeLong(max);
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (counts[i] != 0) {
+                        out.writeInt(i);
+                        out.writeLong(counts[i]);
+                    }
+                }
+                out.writeInt(-1);
+            }
+        }
+
+        public static Histogram readFrom(File file) throws IOException {
+            Histogram h = new Histogram();
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+                h.max = in.readLong();
+                for (int i = in.readInt(); i >= 0; i = in.readInt()) {
+                    long c = in.readLong();
+                    h.counts[i] += c;
+                    h.total += c;
+                }
+            }
+            return h;
+        }
+    }
+
+    /**
+     * 收集所有线程的直方图，测试结束后合并写入文件。
+     * 文件放在 -Dlatency.dir 指定的目录里，每个 fork 一个文件。
+     */
+    @State(Scope.Benchmark)
+    public static class Recorder {
+        final Queue<Histogram> all = new ConcurrentLinkedQueue<>();
+
+        @TearDown(Level.Trial)
+        public void dump() throws IOException {
+            Histogram merged = new Histogram();
+            for (Histogram h : all) {
+                merged.add(h);
+            }
+            File dir = new File(System.getProperty("latency.dir", System.getProperty("java.io.tmpdir")));
+            merged.writeTo(File.createTempFile("fork-", ".hist", dir));
+        }
+    }
+
+    /**
+     * 每个线程自己的直方图，预热阶段的耗时不记录。
+     */
+    @State(Scope.Thread)
+    public static class Local {
+        final Histogram histogram = new Histogram();
+        boolean recording;
+
+        @Setup(Level.Trial)
+        public void register(Recorder recorder) {
+            recorder.all.add(histogram);
+        }
+
+        @Setup(Level.Iteration)
+        public void iteration(IterationParams params) {
+            recording = params.getType() == IterationType.MEASUREMENT;
+        }
+    }
+
+    /**
+     * 被测代码：分配并填充一个数组。
+     * 大部分时候很快，偶尔碰上 GC 就会卡一下，正好用来观察尾部延迟。
+     */
+    @Param({"1024", "65536"})
+    private int size;
+
+    @Benchmark
+    public byte[] allocate(Local local) {
+        long start = System.nanoTime();
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 42);
+        long took = System.nanoTime() - start;
+        if (local.recording) {
+            local.histogram.record(took);
+        }
+        return bytes;
+    }
+
+    static void print(String title, Histogram h) {
+        System.out.printf("%s (%d samples)%n", title, h.getTotalCount());
+        double[] ps = {50, 90, 99, 99.9, 99.99, 99.999};
+        for (double p : ps) {
+            System.out.printf("  p%-8s %12d ns%n", p, h.valueAt(p));
+        }
+        System.out.printf("  max       %12d ns%n", h.getMax());
+    }
+
+    /**
+     * 每组 @Param 的直方图分别放在一个目录里，fork 之间通过文件合并。
+     * <p>
+     * 修正协调遗漏时 expectedInterval 取的是中位数，
+     * 也就是假设没有卡顿时，操作应该一个接一个地以正常的速度发起。
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        File root = Files.createTempDirectory("jmh-latency").toFile();
+        for (String size : new String[]{"1024", "65536"}) {
+            File dir = new File(root, size);
+            if (!dir.mkdirs()) {
+                throw new IOException("Can not create " + dir);
+            }
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_42_LatencyHistogram.class.getSimpleName())
+                    .param("size", size)
+                    .jvmArgsAppend("-Dlatency.dir=" + dir.getAbsolutePath())
+                    .build();
+            new Runner(opt).run();
+
+            Histogram merged = new Histogram();
+            File[] files = dir.listFiles((d, n) -> n.endsWith(".hist"));
+            if (files != null) {
+                for (File f : files) {
+                    merged.add(Histogram.readFrom(f));
+                }
+            }
+            print("size=" + size, merged);
+            print("size=" + size + ", corrected for coordinated omission", merged.correctedFor(merged.valueAt(50)));
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dawnop.benchmark.JMHSample_42_LatencyHistogram.Histogram;
+
+/**
+ * 之前所有的例子都是闭环 (closed-loop) 的：上一次调用返回了，下一次调用才开始。
+ * 像 {@link JMHSample_30_Interrupts} 的队列和 {@link JMHSample_07_FixtureLevelInvocation} 的线程池，
+ * 一次慢操作会推迟后面所有的操作，排队的时间就这样被藏起来了。
+ * <p>
+ * 真实的请求不会等你：它们按自己的节奏到达，到得太快就只能排队。
+ * 这个例子是开环 (open-loop) 的：
+ * <ul>
+ * <li> a) 按固定的速率安排每次操作的计划开始时间；
+ * <li> b) 还没到时间就等着，已经晚了就马上开始，不会因为之前的慢操作而少发请求；
+ * <li> c) 延迟从计划开始时间算起，排队的时间也算在里面。
+ * </ul>
+ * 延迟记录在 {@link JMHSample_42_LatencyHistogram} 的直方图里，
+ * main 会从低到高扫一遍速率，找出被测代码的饱和点：
+ * 速率超过饱和点之后，实际吞吐量跟不上，延迟会一路飙升。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_43_OpenLoop {
+
+    /**
+     * 每个线程自己的发送计划。
+     */
+    @State(Scope.Thread)
+    public static class Schedule {
+        // 每个线程每秒发起的操作数
+        @Param({"10000"})
+        public long rate;
+
+        long period;
+        long next;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            period = TimeUnit.SECONDS.toNanos(1) / rate;
+            next = System.nanoTime();
+        }
+
+        /**
+         * 等到下一次操作的计划开始时间，返回这个时间。
+         * 离得远就先 park，最后一小段自旋，保证准时。
+         */
+        long awaitNext() {
+            long intended = next;
+            next += period;
+            long remaining;
+            while ((remaining = intended - System.nanoTime()) > 0) {
+                if (remaining > 50_000) {
+                    LockSupport.parkNanos(remaining - 50_000);
+                }
+            }
+            return intended;
+        }
+    }
+
+    /**
+     * 被测代码：
+     * <ul>
+     * <li> queue：通过两个容量为 1 的 {@link ArrayBlockingQueue} 和另一个线程来回交接，和 JMHSample_30 一样；
+     * <li> executor：把任务交给 cached 线程池并等待结果，和 JMHSample_07 一样。
+     * </ul>
+     * 只用一个测试线程，否则 queue 的回复可能被别的线程拿走。
+     */
+    @State(Scope.Benchmark)
+    public static class Target {
+        @Param({"queue", "executor"})
+        public String target;
+
+        ExecutorService service;
+        BlockingQueue<Integer> requests;
+        BlockingQueue<Integer> responses;
+        Thread echo;
+
+        @Setup(Level.Trial)
+        public void up() {
+            switch (target) {
+                case "queue":
+                    requests = new ArrayBlockingQueue<>(1);
+                    responses = new ArrayBlockingQueue<>(1);
+                    echo = new Thread(() -> {
+                        try {
+                            while (true) {
+                                responses.put(requests.take());
+                            }
+                        } catch (InterruptedException e) {
+                            // 测试结束
+                        }
+                    });
+                    echo.setDaemon(true);
+                    echo.start();
+                    break;
+                case "executor":
+                    service = Executors.newCachedThreadPool();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown target: " + target);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void down() {
+            if (echo != null) {
+                echo.interrupt();
+            }
+            if (service != null) {
+                service.shutdown();
+            }
+        }
+
+        int call(int v) throws InterruptedException, ExecutionException {
+            if (service != null) {
+                return service.submit(() -> v + 1).get();
+            }
+            requests.put(v);
+            return responses.take();
+        }
+    }
+
+    @Benchmark
+    public int request(Schedule schedule, Target target, JMHSample_42_LatencyHistogram.Local local)
+            throws InterruptedException, ExecutionException {
+        long intended = schedule.awaitNext();
+        int r = target.call(42);
+        if (local.recording) {
+            local.histogram.record(System.nanoTime() - intended);
+        }
+        return r;
+    }
+
+    /**
+     * 依次用 -Drates 中的速率跑一遍，打印实际吞吐量和延迟分布。
+     * 实际吞吐量不到目标的 95%，或者 p99 比最低速率时高出 10 倍，就认为过了饱和点。
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        String[] rates = System.getProperty("rates", "1000,2000,5000,10000,20000,50000,100000").split(",");
+        File root = Files.createTempDirectory("jmh-open-loop").toFile();
+
+        for (String target : new String[]{"queue", "executor"}) {
+            System.out.printf("%n%-10s %12s %12s %12s %12s %12s%n",
+                    target, "target/s", "achieved/s", "p50 ns", "p99 ns", "max ns");
+            long baseP99 = -1;
+            String knee = null;
+            for (String rate : rates) {
+                File dir = new File(root, target + "-" + rate);
+                if (!dir.mkdirs()) {
+                    throw new IOException("Can not create " + dir);
+                }
+                Options opt = new OptionsBuilder()
+                        .include(JMHSample_43_OpenLoop.class.getSimpleName())
+                        .param("target", target)
+                        .param("rate", rate)
+                        .threads(1)
+                        .jvmArgsAppend("-Dlatency.dir=" + dir.getAbsolutePath())
+                        .build();
+                RunResult result = new Runner(opt).runSingle();
+
+                Histogram h = new Histogram();
+                File[] files = dir.listFiles((d, n) -> n.endsWith(".hist"));
+                if (files != null) {
+                    for (File f : files) {
+                        h.add(Histogram.readFrom(f));
+                    }
+                }
+
+                double achieved = result.getPrimaryResult().getScore();
+                long p99 = h.valueAt(99);
+                System.out.printf("%-10s %12s %12.0f %12d %12d %12d%n",
+                        "", rate, achieved, h.valueAt(50), p99, h.getMax());
+
+                if (baseP99 < 0) {
+                    baseP99 = p99;
+                }
+                if (knee == null && (achieved < 0.95 * Long.parseLong(rate) || p99 > 10 * baseP99)) {
+                    knee = rate;
+                }
+            }
+            System.out.println(knee == null ?
+                    "No saturation up to the highest rate" :
+                    "Saturated at " + knee + " ops/s, the knee is below this rate");
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+package com.dawnop.benchmark;
+
+import com.dawnop.benchmark.JMHSample_07_FixtureLevelInvocation.Scratch;
+import com.dawnop.benchmark.JMHSample_07_FixtureLevelInvocation.Task;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.Integer.getInteger;
+
+/**
+ * {@link JMHSample_07_FixtureLevelInvocation} 只测了 cached 线程池的 submit/get。
+ * 选线程池的时候，真正关心的是不同实现、不同提交线程数下，一次交接 (hand-off) 要花多少时间。
+ * <p>
+ * 这个例子把线程池做成 @Param：
+ * <ul>
+ * <li> cached / fixed：{@link Executors} 的两种常用线程池，任务放在一个共享的阻塞队列里；
+ * <li> fj / fjAsync：{@link ForkJoinPool}，每个工作线程一个双端队列，空闲时去偷别人的任务，
+ * async 模式下自己的队列按 FIFO 而不是 LIFO 处理；
+ * <li> spin：{@link SpinParkExecutor}，工作线程空闲时先自旋一会儿再 park，用 CPU 换唤醒延迟；
+ * <li> virtual：每个任务一个虚拟线程，只有 JDK 21 以上才有，默认不跑，main 在 JDK 21 以上才加上它。
+ * </ul>
+ * 提交的方式有三种：单个 submit 再 get、一次 invokeAll 一批任务、一条 {@link CompletableFuture} 链。
+ * 同时报告吞吐量和平均耗时，main 里再扫一遍提交线程数。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JMHSample_44_ExecutorHandoff {
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"cached", "fixed", "fj", "fjAsync", "spin"})
+        public String type;
+
+        ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void up() {
+            int n = Runtime.getRuntime().availableProcessors();
+            switch (type) {
+                case "cached":
+                    executor = Executors.newCachedThreadPool();
+                    break;
+                case "fixed":
+                    executor = Executors.newFixedThreadPool(n);
+                    break;
+                case "fj":
+                    executor = new ForkJoinPool(n, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false);
+                    break;
+                case "fjAsync":
+                    executor = new ForkJoinPool(n, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+                    break;
+                case "spin":
+                    executor = new SpinParkExecutor(n, getInteger("spins", 1000));
+                    break;
+                case "virtual":
+                    executor = virtualThreadPerTask();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown executor: " + type);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void down() {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 项目按 Java 8 编译，只能通过反射拿到 Executors.newVirtualThreadPerTaskExecutor()。
+     */
+    static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need JDK 21+, running on "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * 工作线程空闲时先自旋 spins 次，还没有任务才 park。
+     * <p>
+     * 提交任务时从 idle 里取出一个 park 着的线程唤醒。
+     * 工作线程先把自己放进 idle 再检查一次任务队列，
+     * 所以不管提交和 park 谁先谁后，都不会丢掉唤醒。
+     * <p>
+     * shutdown 之后工作线程会把队列里剩下的任务跑完才退出，这是 ExecutorService 的约定。
+     */
+    static class SpinParkExecutor extends AbstractExecutorService {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Queue<Thread> idle = new ConcurrentLinkedQueue<>();
+        private final Thread[] workers;
+        private final CountDownLatch terminated;
+        private final int spins;
+        private volatile boolean shutdown;
+
+        SpinParkExecutor(int threads, int spins) {
+            this.spins = spins;
+            this.workers = new Thread[threads];
+            this.terminated = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(this::work, "spin-park-" + i);
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+        }
+
+        private void work() {
+            Thread me = Thread.currentThread();
+            int spun = 0;
+            while (true) {
+                Runnable r = tasks.poll();
+                if (r != null) {
+                    r.run();
+                    spun = 0;
+                } else if (shutdown) {
+                    break;
+                } else if (spun < spins) {
+                    spun++;
+                } else {
+                    idle.offer(me);
+                    if (tasks.isEmpty() && !shutdown) {
+                        LockSupport.park(this);
+                    }
+                    idle.remove(me);
+                    spun = 0;
+                }
+            }
+            terminated.countDown();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            tasks.offer(command);
+            // 和 shutdown 撞上了，工作线程可能都已经退出了，这时任务还在队列里就拿回来
+            if (shutdown && tasks.remove(command)) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            Thread t = idle.poll();
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            for (Thread t : workers) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            List<Runnable> left = new ArrayList<>();
+            for (Runnable r = tasks.poll(); r != null; r = tasks.poll()) {
+                left.add(r);
+            }
+            return left;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return terminated.getCount() == 0;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return terminated.await(timeout, unit);
+        }
+    }
+
+    /**
+     * invokeAll 的批大小，以及 CompletableFuture 链的长度。
+     */
+    @Param({"16"})
+    private int batch;
+
+    /**
+     * 和 JMHSample_07 的 measureHot 一样：一次交接，等结果回来。
+     */
+    @Benchmark
+    public double submit(Pool p, Scratch s) throws ExecutionException, InterruptedException {
+        return p.executor.submit(new Task(s)).get();
+    }
+
+    /**
+     * invokeAll 的一批任务。同一批的任务会在不同的工作线程上同时跑，
+     * 所以每个任务要有自己的 Scratch，不能共用一个。
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+        List<Task> tasks;
+
+        @Setup(Level.Trial)
+        public void up(JMHSample_44_ExecutorHandoff bench) {
+            tasks = new ArrayList<>(bench.batch);
+            for (int i = 0; i < bench.batch; i++) {
+                tasks.add(new Task(new Scratch()));
+            }
+        }
+    }
+
+    /**
+     * 一次交出去一批，工作线程可以一起处理，唤醒的开销分摊到了每个任务上。
+     * 注意分数是按批算的。
+     */
+    @Benchmark
+    public double invokeAll(Pool p, Batch b) throws InterruptedException, ExecutionException {
+        double sum = 0;
+        for (Future<Double> f : p.executor.invokeAll(b.tasks)) {
+            sum += f.get();
+        }
+        return sum;
+    }
+
+    /**
+     * 每一步都依赖上一步，交接是串行发生的，测的是连续交接 batch 次的耗时。
+     */
+    @Benchmark
+    public double completableChain(Pool p, Scratch s) throws ExecutionException, InterruptedException {
+        CompletableFuture<Double> f = CompletableFuture.supplyAsync(s::doWork, p.executor);
+        for (int i = 1; i < batch; i++) {
+            f = f.thenApplyAsync(x -> x + s.doWork(), p.executor);
+        }
+        return f.get();
+    }
+
+    /**
+     * 提交线程数从 1 开始翻倍，直到 -DmaxThreads（默认 CPU 数的两倍）。
+     * 线程池自己的工作线程数不变，提交线程越多，交接的竞争越激烈。
+     */
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = getInteger("maxThreads", 2 * Runtime.getRuntime().availableProcessors());
+        List<String> types = new ArrayList<>(Arrays.asList("cached", "fixed", "fj", "fjAsync", "spin"));
+        if (Platform.javaVersion() >= 21) {
+            types.add("virtual");
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_44_ExecutorHandoff.class.getSimpleName())
+                    .param("type", types.toArray(new String[0]))
+                    .threads(threads)
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+
+}
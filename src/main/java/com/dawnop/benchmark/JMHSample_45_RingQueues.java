@@ -0,0 +1,744 @@
+package com.dawnop.benchmark;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link JMHSample_30_Interrupts} 里的 {@link java.util.concurrent.ArrayBlockingQueue}
+ * 不管有没有竞争，每次 put/take 都要拿同一把锁。
+ * <p>
+ * 这里是几个基于数组的无锁环形队列，按生产者、消费者的个数区分：
+ * <ul>
+ * <li> a) {@link Spsc}：单生产者单消费者，两边各写各的下标，连 CAS 都不需要；
+ * <li> b) {@link Mpsc}：多生产者单消费者，生产者 CAS 抢 tail，消费者独占 head；
+ * <li> c) {@link Mpmc}：多生产者多消费者，每个槽位带一个序号，两边都要 CAS (Vyukov 的算法)。
+ * </ul>
+ * head 和 tail 用 {@link JMHSample_22_FalseSharing} 里的继承方式填充，
+ * 生产者和消费者不会在同一个 cache line 上来回争抢。
+ * 每一端还缓存了对方的下标，只有看起来满了（或者空了）才去读对方那个 cache line。
+ * <p>
+ * 队列满了或者空了的时候怎么等，由 {@link WaitStrategy} 决定：
+ * 阻塞、自旋或者 yield。三种都响应中断，JMH 可以照常中断卡住的线程。
+ * <p>
+ * 为了直接替换 BlockingQueue，这些队列实现了它的接口。
+ * 遍历是弱一致的，只读不改；从中间删除元素 (remove(Object)、迭代器的 remove 等) 是可选操作，不支持。
+ * 另外还有不等待的批量接口 {@link RingQueue#offer(Object[], int, int)} 和 {@link RingQueue#drain}，
+ * 以及不装箱的 {@link IntRing}。
+ */
+public class JMHSample_45_RingQueues {
+
+    /**
+     * 等待队列变成非空（或者非满）的方式。
+     */
+    public abstract static class WaitStrategy {
+
+        /**
+         * 等到 ready 成立，或者被中断。
+         */
+        abstract void await(BooleanSupplier ready) throws InterruptedException;
+
+        /**
+         * 状态变了以后调用，唤醒等待的线程。
+         */
+        void signal() {
+        }
+
+        public static WaitStrategy of(String name) {
+            switch (name) {
+                case "block":
+                    return new Blocking();
+                case "spin":
+                    return new Spinning();
+                case "yield":
+                    return new Yielding();
+                default:
+                    throw new IllegalArgumentException("Unknown wait strategy: " + name);
+            }
+        }
+    }
+
+    /**
+     * 忙等，延迟最低，但是会一直占着一个 CPU。
+     */
+    static class Spinning extends WaitStrategy {
+        @Override
+        void await(BooleanSupplier ready) throws InterruptedException {
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    /**
+     * 每次检查之间让出 CPU，线程数多于 CPU 数的时候比自旋好。
+     */
+    static class Yielding extends WaitStrategy {
+        @Override
+        void await(BooleanSupplier ready) throws InterruptedException {
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 在 Condition 上阻塞。
+     * <p>
+     * 只有真的有线程在等，signal 才去拿锁，没有等待的时候 offer/poll 不用加锁。
+     * 等待的一方先原子地增加 waiters 再检查队列，通知的一方先改队列再检查 waiters。
+     * <p>
+     * 队列发布元素用的是 lazySet，它后面紧跟一个普通的 volatile 读的话，
+     * 两者之间没有 StoreLoad 屏障，读 waiters 可能被提到发布之前：
+     * 通知的一方看到 waiters == 0，等待的一方又没看到新元素，就再也没人叫醒它了。
+     * 所以 signal 用 getAndAdd(0) 读 waiters，这是一次读改写，在两次读改写的先后顺序里，
+     * 要么等待的一方先增加，通知的一方一定看得到；要么通知的一方在前，它之前发布的元素对等待的一方可见。
+     * 代价是每次 offer/poll 都多一次原子操作，只有 "block" 策略要付。
+     */
+    static class Blocking extends WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        @Override
+        void await(BooleanSupplier ready) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                waiters.incrementAndGet();
+                while (!ready.getAsBoolean()) {
+                    changed.await();
+                }
+            } finally {
+                waiters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void signal() {
+            if (waiters.getAndAdd(0) > 0) {
+                lock.lock();
+                try {
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /*
+     * ================================ 填充 ================================
+     *
+     * 字段在父类里的位置总是排在子类字段之前，
+     * 所以 tail 和 head 前后各有 128 字节的填充（相邻的两个 cache line 可能会被一起预取）。
+     */
+
+    abstract static class Pad0<E> extends AbstractQueue<E> {
+        long p01, p02, p03, p04, p05, p06, p07, p08;
+        long p11, p12, p13, p14, p15, p16, p17, p18;
+    }
+
+    abstract static class TailField<E> extends Pad0<E> {
+        volatile long tail;
+        // 生产者缓存的 head
+        long headCache;
+    }
+
+    abstract static class Pad1<E> extends TailField<E> {
+        long q01, q02, q03, q04, q05, q06, q07, q08;
+        long q11, q12, q13, q14, q15, q16, q17, q18;
+    }
+
+    abstract static class HeadField<E> extends Pad1<E> {
+        volatile long head;
+        // 消费者缓存的 tail
+        long tailCache;
+    }
+
+    abstract static class Pad2<E> extends HeadField<E> {
+        long r01, r02, r03, r04, r05, r06, r07, r08;
+        long r11, r12, r13, r14, r15, r16, r17, r18;
+    }
+
+    @SuppressWarnings("rawtypes")
+    static final AtomicLongFieldUpdater<TailField> TAIL = AtomicLongFieldUpdater.newUpdater(TailField.class, "tail");
+    @SuppressWarnings("rawtypes")
+    static final AtomicLongFieldUpdater<HeadField> HEAD = AtomicLongFieldUpdater.newUpdater(HeadField.class, "head");
+
+    /**
+     * 环形队列的公共部分：容量向上取到 2 的幂，
+     * 子类只需要实现不阻塞的 {@link #tryOffer} 和 {@link #tryPoll}。
+     */
+    public abstract static class RingQueue<E> extends Pad2<E> implements BlockingQueue<E> {
+        final int capacity;
+        final int mask;
+        private final WaitStrategy notEmpty;
+        private final WaitStrategy notFull;
+
+        RingQueue(int capacity, String wait) {
+            if (capacity < 1 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("Capacity out of range: " + capacity);
+            }
+            int c = 1;
+            while (c < capacity) {
+                c <<= 1;
+            }
+            this.capacity = c;
+            this.mask = c - 1;
+            this.notEmpty = WaitStrategy.of(wait);
+            this.notFull = WaitStrategy.of(wait);
+        }
+
+        abstract boolean tryOffer(E e);
+
+        abstract E tryPoll();
+
+        /**
+         * 读下标 i 处的元素，不取出。槽位还没写好、或者已经被取走了，返回 null。
+         */
+        abstract E elementAt(long i);
+
+        /**
+         * 批量写入，默认逐个写，能一次性发布的子类可以覆盖。
+         */
+        int tryOffer(E[] batch, int from, int n) {
+            int k = 0;
+            while (k < n && tryOffer(batch[from + k])) {
+                k++;
+            }
+            return k;
+        }
+
+        /**
+         * 批量读出，默认逐个读，能一次性发布的子类可以覆盖。
+         */
+        int tryDrain(Consumer<? super E> c, int limit) {
+            int k = 0;
+            E e;
+            while (k < limit && (e = tryPoll()) != null) {
+                c.accept(e);
+                k++;
+            }
+            return k;
+        }
+
+        @Override
+        public boolean offer(E e) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+            if (tryOffer(e)) {
+                notEmpty.signal();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public E poll() {
+            E e = tryPoll();
+            if (e != null) {
+                notFull.signal();
+            }
+            return e;
+        }
+
+        /**
+         * 尽量多地写入 batch[from, from + n)，不等待，返回写入的个数。
+         * 整批只唤醒一次等待的消费者。
+         */
+        public int offer(E[] batch, int from, int n) {
+            for (int i = from; i < from + n; i++) {
+                if (batch[i] == null) {
+                    throw new NullPointerException();
+                }
+            }
+            int k = tryOffer(batch, from, n);
+            if (k > 0) {
+                notEmpty.signal();
+            }
+            return k;
+        }
+
+        public int offer(E[] batch) {
+            return offer(batch, 0, batch.length);
+        }
+
+        /**
+         * 最多读出 limit 个元素交给 c，不等待，返回读出的个数。
+         * 整批只唤醒一次等待的生产者。
+         */
+        public int drain(Consumer<? super E> c, int limit) {
+            int k = tryDrain(c, limit);
+            if (k > 0) {
+                notFull.signal();
+            }
+            return k;
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException {
+            while (!offer(e)) {
+                notFull.await(() -> size() < capacity);
+            }
+        }
+
+        @Override
+        public E take() throws InterruptedException {
+            E e;
+            while ((e = poll()) == null) {
+                notEmpty.await(() -> size() > 0);
+            }
+            return e;
+        }
+
+        /**
+         * 带超时的版本不走等待策略，直接 yield 直到超时。
+         */
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!offer(e)) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                Thread.yield();
+            }
+            return true;
+        }
+
+        @Override
+        public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            E e;
+            while ((e = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    return null;
+                }
+                Thread.yield();
+            }
+            return e;
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super E> c, int maxElements) {
+            if (c == this) {
+                throw new IllegalArgumentException();
+            }
+            return drain(c::add, maxElements);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return capacity - size();
+        }
+
+        /**
+         * 并发读的两个下标，只是个大概的值。
+         */
+        @Override
+        public int size() {
+            long h = head;
+            long size = tail - h;
+            return (int) Math.max(0, Math.min(capacity, size));
+        }
+
+        /**
+         * 读到元素以后 head 没变，说明它还在队头。
+         * tail 已经前进但槽位还没写好的时候，元素还没发布出来，当作空队列。
+         */
+        @Override
+        public E peek() {
+            while (true) {
+                long h = head;
+                if (tail - h <= 0) {
+                    return null;
+                }
+                E e = elementAt(h);
+                if (head == h) {
+                    return e;
+                }
+            }
+        }
+
+        /**
+         * 弱一致的遍历：先读一次 head 和 tail，再把这之间还在的元素拷出来。
+         * 遍历期间的 offer/poll 不会抛 ConcurrentModificationException，但也不一定看得到。
+         */
+        @Override
+        public Iterator<E> iterator() {
+            long h = head;
+            long t = Math.min(tail, h + capacity);
+            List<E> snapshot = new ArrayList<>((int) Math.max(0, t - h));
+            for (long i = Math.max(h, head); i < t; i++) {
+                E e = elementAt(i);
+                if (e != null) {
+                    snapshot.add(e);
+                }
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        }
+
+        /**
+         * 环形队列不能从中间删除，这是 Collection 的可选操作。
+         */
+        @Override
+        public boolean remove(Object o) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * 单生产者单消费者。
+     * <p>
+     * 各自的下标只有自己写，用 lazySet 发布就够了：
+     * 元素先写进数组，再更新 tail，对方读到新的 tail 时一定能看到元素。
+     */
+    public static class Spsc<E> extends RingQueue<E> {
+        private final E[] buffer;
+
+        @SuppressWarnings("unchecked")
+        public Spsc(int capacity, String wait) {
+            super(capacity, wait);
+            buffer = (E[]) new Object[this.capacity];
+        }
+
+        @Override
+        boolean tryOffer(E e) {
+            long t = tail;
+            if (t - headCache >= capacity) {
+                headCache = head;
+                if (t - headCache >= capacity) {
+                    return false;
+                }
+            }
+            buffer[(int) t & mask] = e;
+            TAIL.lazySet(this, t + 1);
+            return true;
+        }
+
+        @Override
+        E tryPoll() {
+            long h = head;
+            if (h >= tailCache) {
+                tailCache = tail;
+                if (h >= tailCache) {
+                    return null;
+                }
+            }
+            int i = (int) h & mask;
+            E e = buffer[i];
+            buffer[i] = null;
+            HEAD.lazySet(this, h + 1);
+            return e;
+        }
+
+        /**
+         * 数组是普通的读，之前读过的 volatile tail 保证了这之前写好的元素都看得到。
+         */
+        @Override
+        E elementAt(long i) {
+            return buffer[(int) i & mask];
+        }
+
+        /**
+         * 整批写进数组，最后只更新一次 tail。
+         */
+        @Override
+        int tryOffer(E[] batch, int from, int n) {
+            long t = tail;
+            long free = capacity - (t - headCache);
+            if (free < n) {
+                headCache = head;
+                free = capacity - (t - headCache);
+            }
+            int k = (int) Math.min(n, free);
+            for (int i = 0; i < k; i++) {
+                buffer[(int) (t + i) & mask] = batch[from + i];
+            }
+            if (k > 0) {
+                TAIL.lazySet(this, t + k);
+            }
+            return k;
+        }
+
+        @Override
+        int tryDrain(Consumer<? super E> c, int limit) {
+            long h = head;
+            long available = tailCache - h;
+            if (available < limit) {
+                tailCache = tail;
+                available = tailCache - h;
+            }
+            int k = (int) Math.min(limit, available);
+            for (int i = 0; i < k; i++) {
+                int idx = (int) (h + i) & mask;
+                E e = buffer[idx];
+                buffer[idx] = null;
+                c.accept(e);
+            }
+            if (k > 0) {
+                HEAD.lazySet(this, h + k);
+            }
+            return k;
+        }
+    }
+
+    /**
+     * 多生产者单消费者。
+     * <p>
+     * 生产者先 CAS 抢到一个槽位再写元素，所以消费者可能看到 tail 已经前进了但槽位还是空的，
+     * 这时只能等那个生产者写完。
+     */
+    public static class Mpsc<E> extends RingQueue<E> {
+        private final AtomicReferenceArray<E> buffer;
+
+        public Mpsc(int capacity, String wait) {
+            super(capacity, wait);
+            buffer = new AtomicReferenceArray<>(this.capacity);
+        }
+
+        @Override
+        boolean tryOffer(E e) {
+            long t;
+            do {
+                t = tail;
+                // 生产者有好几个，不能共用 headCache
+                if (t - head >= capacity) {
+                    return false;
+                }
+            } while (!TAIL.compareAndSet(this, t, t + 1));
+            buffer.lazySet((int) t & mask, e);
+            return true;
+        }
+
+        @Override
+        E tryPoll() {
+            long h = head;
+            int i = (int) h & mask;
+            E e = buffer.get(i);
+            if (e == null) {
+                if (h == tail) {
+                    return null;
+                }
+                while ((e = buffer.get(i)) == null) {
+                    // 槽位已经被抢到了，等生产者写进来
+                }
+            }
+            buffer.lazySet(i, null);
+            HEAD.lazySet(this, h + 1);
+            return e;
+        }
+
+        @Override
+        E elementAt(long i) {
+            return buffer.get((int) i & mask);
+        }
+    }
+
+    /**
+     * 多生产者多消费者。
+     * <p>
+     * 槽位 i 的序号等于 tail 时可以写，写完设成 tail + 1；
+     * 等于 head + 1 时可以读，读完设成 head + capacity，留给下一圈的生产者。
+     * 容量为 1 的时候“刚写完”和“刚读完”的序号一样，分不清，所以容量至少是 2。
+     * 不偷偷改成 2：容量 1 和容量 2 的队列测出来的不是一回事。
+     */
+    public static class Mpmc<E> extends RingQueue<E> {
+        private final E[] buffer;
+        private final AtomicLongArray sequence;
+
+        @SuppressWarnings("unchecked")
+        public Mpmc(int capacity, String wait) {
+            super(checkCapacity(capacity), wait);
+            buffer = (E[]) new Object[this.capacity];
+            sequence = new AtomicLongArray(this.capacity);
+            for (int i = 0; i < this.capacity; i++) {
+                sequence.set(i, i);
+            }
+        }
+
+        private static int checkCapacity(int capacity) {
+            if (capacity < 2) {
+                throw new IllegalArgumentException("mpmc needs a capacity of at least 2, got " + capacity);
+            }
+            return capacity;
+        }
+
+        @Override
+        boolean tryOffer(E e) {
+            while (true) {
+                long t = tail;
+                int i = (int) t & mask;
+                long diff = sequence.get(i) - t;
+                if (diff == 0) {
+                    if (TAIL.compareAndSet(this, t, t + 1)) {
+                        buffer[i] = e;
+                        sequence.lazySet(i, t + 1);
+                        return true;
+                    }
+                } else if (diff < 0) {
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        E tryPoll() {
+            while (true) {
+                long h = head;
+                int i = (int) h & mask;
+                long diff = sequence.get(i) - (h + 1);
+                if (diff == 0) {
+                    if (HEAD.compareAndSet(this, h, h + 1)) {
+                        E e = buffer[i];
+                        buffer[i] = null;
+                        sequence.lazySet(i, h + capacity);
+                        return e;
+                    }
+                } else if (diff < 0) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * 序号等于 i + 1 才是写好了还没被取走的元素，读完再确认一次序号没变。
+         */
+        @Override
+        E elementAt(long i) {
+            int idx = (int) i & mask;
+            if (sequence.get(idx) != i + 1) {
+                return null;
+            }
+            E e = buffer[idx];
+            return sequence.get(idx) == i + 1 ? e : null;
+        }
+    }
+
+    /**
+     * 单生产者单消费者的 int 环形队列，元素不装箱，也没有等待策略，只支持批量读写。
+     * <p>
+     * 这里换一种填充方式：用 {@link JMHSample_22_FalseSharing} 中"数组"的办法，
+     * 把 tail 和 head 放在同一个 {@link AtomicLongArray} 里相隔 128 字节的位置上，
+     * 各自缓存的对方下标也用同样的布局放在一个 long[] 里。
+     */
+    public static class IntRing {
+        private static final int TAIL_SLOT = 16;
+        private static final int HEAD_SLOT = 32;
+        private static final int SLOTS = 48;
+
+        private final AtomicLongArray indices = new AtomicLongArray(SLOTS);
+        // 生产者在 TAIL_SLOT 上缓存 head，消费者在 HEAD_SLOT 上缓存 tail
+        private final long[] cached = new long[SLOTS];
+        private final int[] buffer;
+        private final int capacity;
+        private final int mask;
+
+        public IntRing(int capacity) {
+            if (capacity < 1 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("Capacity out of range: " + capacity);
+            }
+            int c = 1;
+            while (c < capacity) {
+                c <<= 1;
+            }
+            this.capacity = c;
+            this.mask = c - 1;
+            this.buffer = new int[c];
+        }
+
+        /**
+         * 尽量多地写入 batch[from, from + n)，返回写入的个数。
+         */
+        public int offer(int[] batch, int from, int n) {
+            long t = indices.get(TAIL_SLOT);
+            long free = capacity - (t - cached[TAIL_SLOT]);
+            if (free < n) {
+                cached[TAIL_SLOT] = indices.get(HEAD_SLOT);
+                free = capacity - (t - cached[TAIL_SLOT]);
+            }
+            int k = (int) Math.min(n, free);
+            for (int i = 0; i < k; i++) {
+                buffer[(int) (t + i) & mask] = batch[from + i];
+            }
+            if (k > 0) {
+                indices.lazySet(TAIL_SLOT, t + k);
+            }
+            return k;
+        }
+
+        /**
+         * 最多读出 limit 个元素交给 c，返回读出的个数。
+         */
+        public int drain(IntConsumer c, int limit) {
+            long h = indices.get(HEAD_SLOT);
+            long available = cached[HEAD_SLOT] - h;
+            if (available < limit) {
+                cached[HEAD_SLOT] = indices.get(TAIL_SLOT);
+                available = cached[HEAD_SLOT] - h;
+            }
+            int k = (int) Math.min(limit, available);
+            for (int i = 0; i < k; i++) {
+                c.accept(buffer[(int) (h + i) & mask]);
+            }
+            if (k > 0) {
+                indices.lazySet(HEAD_SLOT, h + k);
+            }
+            return k;
+        }
+
+        public int size() {
+            long h = indices.get(HEAD_SLOT);
+            return (int) Math.max(0, Math.min(capacity, indices.get(TAIL_SLOT) - h));
+        }
+    }
+
+    /**
+     * 按名字创建队列，名字和 JMHSample_30 的 @Param 一致。
+     */
+    public static <E> BlockingQueue<E> create(String kind, int capacity, String wait) {
+        switch (kind) {
+            case "spsc":
+                return new Spsc<>(capacity, wait);
+            case "mpsc":
+                return new Mpsc<>(capacity, wait);
+            case "mpmc":
+                return new Mpmc<>(capacity, wait);
+            default:
+                throw new IllegalArgumentException("Unknown ring queue: " + kind);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.dawnop.benchmark;
+
+import com.dawnop.benchmark.JMHSample_45_RingQueues.IntRing;
+import com.dawnop.benchmark.JMHSample_45_RingQueues.Spsc;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link JMHSample_30_Interrupts} 每次 put/take 只搬一个 Integer，
+ * 每个元素都要装箱，还要付一次完整的同步开销。
+ * <p>
+ * 这个例子和它一样是一个 Q 组，一个线程写、一个线程读，但是每次搬 batch 个元素：
+ * <ul>
+ * <li> ABQ：{@link ArrayBlockingQueue}，写的时候逐个 offer，读的时候用 drainTo 一次拿一把锁；
+ * <li> ring：{@link JMHSample_45_RingQueues} 的 SPSC 队列，批量写、批量读都只发布一次下标；
+ * <li> intRing：同样的 SPSC 队列，但是元素是 int，不装箱。
+ * </ul>
+ * 所有操作都不等待，队列满了或者空了就返回，所以也不需要 JMH 来中断线程。
+ * <p>
+ * 每次调用搬的元素个数不固定，没法用 @OperationsPerInvocation，
+ * 这里用 {@link JMHSample_23_AuxCounters} 的计数器数元素，
+ * 结果里的 filled 和 drained 就是每微秒搬了多少个元素。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Group)
+public class JMHSample_46_BatchQueues {
+
+    @Param({"ABQ", "ring", "intRing"})
+    private String kind;
+
+    @Param({"1", "8", "64", "512"})
+    private int batch;
+
+    @Param({"1024"})
+    private int capacity;
+
+    private ArrayBlockingQueue<Integer> abq;
+    private Spsc<Integer> ring;
+    private IntRing intRing;
+
+    @Setup
+    public void setup() {
+        switch (kind) {
+            case "ABQ":
+                abq = new ArrayBlockingQueue<>(capacity);
+                break;
+            case "ring":
+                ring = new Spsc<>(capacity, "yield");
+                break;
+            case "intRing":
+                intRing = new IntRing(capacity);
+                break;
+            default:
+                throw new IllegalStateException("Unknown queue: " + kind);
+        }
+    }
+
+    /**
+     * 每个线程搬了多少个元素。
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Elements {
+        public long filled;
+        public long drained;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            filled = 0;
+            drained = 0;
+        }
+    }
+
+    /**
+     * 生产者这边准备数据用的缓冲区，值每次都不一样，超过 127 的 Integer 都要新分配。
+     * next 是下一个要放进队列的值，只按真正放进去的个数往前走。
+     */
+    @State(Scope.Thread)
+    public static class Source {
+        int next;
+        Integer[] boxed;
+        int[] ints;
+
+        @Setup
+        public void setup(JMHSample_46_BatchQueues q) {
+            boxed = new Integer[q.batch];
+            ints = new int[q.batch];
+        }
+    }
+
+    /**
+     * 消费者这边的接收者，既是 Collection（给 drainTo 用），也是 Consumer 和 IntConsumer。
+     */
+    @State(Scope.Thread)
+    public static class Sink extends AbstractCollection<Integer> implements Consumer<Integer>, IntConsumer {
+        long sum;
+
+        @Override
+        public boolean add(Integer v) {
+            sum += v;
+            return true;
+        }
+
+        @Override
+        public void accept(Integer v) {
+            sum += v;
+        }
+
+        @Override
+        public void accept(int v) {
+            sum += v;
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    @Group("Q")
+    @Benchmark
+    public int fill(Source s, Elements e) {
+        int n = 0;
+        switch (kind) {
+            case "ABQ":
+                while (n < batch && abq.offer(s.next + n)) {
+                    n++;
+                }
+                break;
+            case "ring":
+                // 只给放得下的那几个装箱，队列满的时候不会白白分配 batch 个 Integer
+                int free = Math.min(batch, ring.remainingCapacity());
+                for (int i = 0; i < free; i++) {
+                    s.boxed[i] = s.next + i;
+                }
+                n = ring.offer(s.boxed, 0, free);
+                break;
+            default:
+                for (int i = 0; i < batch; i++) {
+                    s.ints[i] = s.next + i;
+                }
+                n = intRing.offer(s.ints, 0, batch);
+        }
+        // 只有放进去的元素才算用掉了一个值
+        s.next += n;
+        e.filled += n;
+        return n;
+    }
+
+    @Group("Q")
+    @Benchmark
+    public long drain(Sink s, Elements e) {
+        int n;
+        switch (kind) {
+            case "ABQ":
+                n = abq.drainTo(s, batch);
+                break;
+            case "ring":
+                n = ring.drain(s, batch);
+                break;
+            default:
+                n = intRing.drain(s, batch);
+        }
+        e.drained += n;
+        return s.sum;
+    }
+
+    /**
+     * 注意看 filled 和 drained 两个计数器随 batch 的变化，
+     * 而不是 Q 本身的分数：那只是调用次数。
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_46_BatchQueues.class.getSimpleName())
+                .threadGroups(1, 1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,277 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link JMHSample_15_Asymmetric} 里只有一个 AtomicInteger，三个线程 inc，一个线程 get。
+ * 所有的写都挤在同一个 cache line 上，写的线程越多，CAS 失败重试得越多。
+ * <p>
+ * 这个例子保留了同样的 g 组，把计数器换成 @Param 可选的几种实现：
+ * <ul>
+ * <li> atomic：{@link AtomicLong#incrementAndGet()}，和 JMHSample_15 一样；
+ * <li> fieldUpdater：volatile long 字段加 {@link AtomicLongFieldUpdater#getAndAdd}；
+ * <li> varHandle：同样的字段，用 VarHandle 的 getAndAdd ({@link VarHandleCounter})，Java 8 上跳过；
+ * <li> adder：{@link LongAdder}，有竞争时把写分散到多个 cell 上；
+ * <li> striped：{@link Striped}，自己实现的按线程分散、每个槽位独占 cache line 的计数器；
+ * <li> batched：{@link Batched}，每个线程先在本地攒着，攒够 N 次再一起加到共享的计数器上。
+ * </ul>
+ * 分散写的代价是读：get 要把所有槽位加起来。batched 的读最便宜，但是读到的值会落后。
+ * <p>
+ * main 里用 threadGroups 把写:读的比例从多写少读扫到少写多读，线程总数等于 CPU 数。
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_47_Counters {
+
+    /**
+     * 计数器的抽象，increment 只需要加一，不需要返回新值。
+     */
+    public interface Counter {
+        void increment();
+
+        long get();
+    }
+
+    static class Atomic implements Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        @Override
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        @Override
+        public long get() {
+            return value.get();
+        }
+    }
+
+    static class FieldUpdater implements Counter {
+        private static final AtomicLongFieldUpdater<FieldUpdater> VALUE =
+                AtomicLongFieldUpdater.newUpdater(FieldUpdater.class, "value");
+
+        private volatile long value;
+
+        @Override
+        public void increment() {
+            VALUE.getAndAdd(this, 1);
+        }
+
+        @Override
+        public long get() {
+            return value;
+        }
+    }
+
+    /**
+     * VarHandle 通过 {@link Platform#varHandle} 拿到，和 FieldUpdater 比少了每次调用时的类型检查。
+     */
+    static class VarHandleCounter implements Counter {
+        static final MethodHandle GET_AND_ADD = Platform.varHandle(MethodHandles.lookup(),
+                VarHandleCounter.class, "value", "GET_AND_ADD",
+                MethodType.methodType(long.class, VarHandleCounter.class, long.class));
+
+        private volatile long value;
+
+        @Override
+        public void increment() {
+            try {
+                long ignored = (long) GET_AND_ADD.invokeExact(this, 1L);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public long get() {
+            return value;
+        }
+    }
+
+    static class Adder implements Counter {
+        private final LongAdder value = new LongAdder();
+
+        @Override
+        public void increment() {
+            value.increment();
+        }
+
+        @Override
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * 槽位数是 CPU 数的两倍向上取到 2 的幂，线程按 id 散列到一个槽位。
+     * Java 拿不到当前线程在哪个核上，只能用线程 id 近似：线程不多的时候基本各占一个槽位。
+     * <p>
+     * 槽位放在一个 {@link AtomicLongArray} 里，相邻两个槽位隔开 128 字节，
+     * 也就是 {@link JMHSample_22_FalseSharing} 中“数组”的填充办法。
+     */
+    static class Striped implements Counter {
+        // 16 个 long，128 字节
+        private static final int STRIDE = 16;
+
+        private final AtomicLongArray cells;
+        private final int mask;
+
+        Striped() {
+            int n = 1;
+            while (n < 2 * Runtime.getRuntime().availableProcessors()) {
+                n <<= 1;
+            }
+            mask = n - 1;
+            cells = new AtomicLongArray((n + 1) * STRIDE);
+        }
+
+        private static int hash(long id) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public void increment() {
+            int i = hash(Thread.currentThread().getId()) & mask;
+            // 第 0 个位置留空，免得第一个槽位和数组头在同一个 cache line 上
+            cells.getAndIncrement((i + 1) * STRIDE);
+        }
+
+        @Override
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i <= mask; i++) {
+                sum += cells.get((i + 1) * STRIDE);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * 每个线程在 ThreadLocal 里攒 batch 次，然后 addAndGet 一次。
+     * 读的时候最多落后 线程数 * (batch - 1)。
+     */
+    static class Batched implements Counter {
+        private final AtomicLong value = new AtomicLong();
+        private final ThreadLocal<long[]> pending = ThreadLocal.withInitial(() -> new long[1]);
+        private final int batch;
+
+        Batched(int batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void increment() {
+            long[] p = pending.get();
+            if (++p[0] == batch) {
+                value.addAndGet(batch);
+                p[0] = 0;
+            }
+        }
+
+        @Override
+        public long get() {
+            return value.get();
+        }
+    }
+
+    @Param({"atomic", "fieldUpdater", "varHandle", "adder", "striped", "batched"})
+    private String impl;
+
+    /**
+     * 只对 batched 有效。
+     */
+    @Param({"64"})
+    private int batch;
+
+    private Counter counter;
+
+    @Setup
+    public void up() {
+        switch (impl) {
+            case "atomic":
+                counter = new Atomic();
+                break;
+            case "fieldUpdater":
+                counter = new FieldUpdater();
+                break;
+            case "varHandle":
+                counter = new VarHandleCounter();
+                break;
+            case "adder":
+                counter = new Adder();
+                break;
+            case "striped":
+                counter = new Striped();
+                break;
+            case "batched":
+                counter = new Batched(batch);
+                break;
+            default:
+                throw new IllegalStateException("Unknown counter: " + impl);
+        }
+    }
+
+    @Benchmark
+    @Group("g")
+    @GroupThreads(3)
+    public void inc() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Group("g")
+    @GroupThreads(1)
+    public long get() {
+        return counter.get();
+    }
+
+    /**
+     * threadGroups 的顺序和组内方法名的顺序一致，也就是 get 在前，inc 在后。
+     * 线程总数至少是 2，保证读和写都有。
+     */
+    public static void main(String[] args) throws RunnerException {
+        int total = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        // 写:读 分别为 (total - 1):1、一半对一半、1:(total - 1)
+        Set<String> ratios = new LinkedHashSet<>();
+        ratios.add((total - 1) + ":1");
+        ratios.add((total / 2) + ":" + (total - total / 2));
+        ratios.add("1:" + (total - 1));
+
+        for (String ratio : ratios) {
+            String[] wr = ratio.split(":");
+            int writers = Integer.parseInt(wr[0]);
+            int readers = Integer.parseInt(wr[1]);
+            System.out.printf("%n%d writers, %d readers%n", writers, readers);
+
+            OptionsBuilder opt = new OptionsBuilder();
+            opt.include(JMHSample_47_Counters.class.getSimpleName())
+                    .threadGroups(readers, writers);
+            if (VarHandleCounter.GET_AND_ADD == null) {
+                opt.param("impl", "atomic", "fieldUpdater", "adder", "striped", "batched");
+            }
+
+            new Runner(opt.build()).run();
+        }
+    }
+
+}
@@ -0,0 +1,391 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Integer.getInteger;
+
+/**
+ * {@link JMHSample_22_FalseSharing} 里的填充都是手写的，写完了也不知道到底有没有用：
+ * JVM 可以重排字段，JDK 15 以后子类的字段还可能被塞进父类留下的空隙里，
+ * 有的 CPU 会一次预取相邻的两个 cache line，64 字节的填充就不够了。
+ * <p>
+ * 这个例子做了两件事：
+ * <ul>
+ * <li> a) {@link #generate} 按给定的热点字段和 cache line 大小生成继承方式填充的类，
+ * 每一层填充都用 byte，不会留下空隙。下面的 Generated_0..4 就是用
+ * {@code main generate Generated int:readOnly int:writeOnly} 生成的，重新生成后直接替换即可；
+ * <li> b) {@link Layout} 用 Unsafe.objectFieldOffset 读出字段的实际偏移，
+ * 检查热点字段之间、热点字段和对象两端之间是不是至少隔了一个 cache line，
+ * 类似 JOL 的输出，可以用来检查 JMHSample_22 里每一种写法。
+ * </ul>
+ * 生成的类在 @Setup 时也会检查一遍，布局不对就直接失败，不会默默地测出一个错误的结果。
+ * <p>
+ * {@code @Contended} 在 JDK 9 以后位于 jdk.internal.vm.annotation，
+ * 项目按 Java 8 编译，没法加 --add-exports，所以这里没有 @Contended 的版本，
+ * 仍然参考 JMHSample_22 的 contended 组，Layout 的输出能看出它有没有生效。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(5)
+public class JMHSample_48_PaddingLayout {
+
+    /**
+     * 默认按 128 字节填充，相邻的两个 cache line 也不会共享。
+     */
+    static final int CACHE_LINE = getInteger("cacheLine", 128);
+
+    /**
+     * 字段布局检查。
+     */
+    public static class Layout {
+        // 直接 import sun.misc.Unsafe 编译时会有警告，所以按名字找到它，只取用到的三个方法：objectFieldOffset、addressSize、arrayIndexScale
+        private static final MethodHandle OBJECT_FIELD_OFFSET;
+        private static final int ADDRESS_SIZE;
+        private static final int REFERENCE_SIZE;
+
+        static {
+            try {
+                Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+                Field f = unsafe.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                Object u = f.get(null);
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                OBJECT_FIELD_OFFSET = lookup.findVirtual(unsafe, "objectFieldOffset",
+                        MethodType.methodType(long.class, Field.class)).bindTo(u);
+                ADDRESS_SIZE = (int) lookup.findVirtual(unsafe, "addressSize",
+                        MethodType.methodType(int.class)).invoke(u);
+                REFERENCE_SIZE = (int) lookup.findVirtual(unsafe, "arrayIndexScale",
+                        MethodType.methodType(int.class, Class.class)).invoke(u, Object[].class);
+            } catch (Throwable e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private static long objectFieldOffset(Field f) {
+            try {
+                return (long) OBJECT_FIELD_OFFSET.invokeExact(f);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot get the offset of " + f, e);
+            }
+        }
+
+        /**
+         * 一个实例字段的偏移和大小。
+         */
+        public static class Slot {
+            final String name;
+            final long offset;
+            final int size;
+
+            Slot(String name, long offset, int size) {
+                this.name = name;
+                this.offset = offset;
+                this.size = size;
+            }
+        }
+
+        /**
+         * 包括父类在内的所有实例字段，按偏移排序。
+         */
+        public static List<Slot> fields(Class<?> clazz) {
+            List<Slot> slots = new ArrayList<>();
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(f.getModifiers())) {
+                        slots.add(new Slot(c.getSimpleName() + "." + f.getName(),
+                                objectFieldOffset(f), sizeOf(f.getType())));
+                    }
+                }
+            }
+            slots.sort(Comparator.comparingLong(s -> s.offset));
+            return slots;
+        }
+
+        /**
+         * 实例的大小：最后一个字段的末尾，按 8 字节对齐。
+         */
+        public static long instanceSize(Class<?> clazz) {
+            long end = ADDRESS_SIZE == 4 ? 8 : 12;
+            for (Slot s : fields(clazz)) {
+                end = Math.max(end, s.offset + s.size);
+            }
+            return (end + 7) & ~7L;
+        }
+
+        private static long offsetOf(Class<?> clazz, String field) {
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                try {
+                    return objectFieldOffset(c.getDeclaredField(field));
+                } catch (NoSuchFieldException e) {
+                    // 去父类里找
+                }
+            }
+            throw new IllegalArgumentException(clazz.getName() + " has no field " + field);
+        }
+
+        private static int sizeOf(Class<?> type) {
+            if (type == long.class || type == double.class) {
+                return 8;
+            }
+            if (type == int.class || type == float.class) {
+                return 4;
+            }
+            if (type == short.class || type == char.class) {
+                return 2;
+            }
+            if (type == byte.class || type == boolean.class) {
+                return 1;
+            }
+            return REFERENCE_SIZE;
+        }
+
+        /**
+         * 返回布局上的问题，没有问题就返回空列表：
+         * 热点字段两两之间，以及热点字段和对象头、对象末尾之间，都要隔开至少 line 字节。
+         * 和对象末尾隔开，是为了不和堆上紧挨着的下一个对象共享 cache line。
+         */
+        public static List<String> check(Class<?> clazz, int line, String... hot) {
+            List<String> problems = new ArrayList<>();
+            long size = instanceSize(clazz);
+            long[] offsets = new long[hot.length];
+            for (int i = 0; i < hot.length; i++) {
+                offsets[i] = offsetOf(clazz, hot[i]);
+                if (offsets[i] < line) {
+                    problems.add(hot[i] + " is " + offsets[i] + " bytes from the object start");
+                }
+                if (size - offsets[i] < line) {
+                    problems.add(hot[i] + " is " + (size - offsets[i]) + " bytes from the object end");
+                }
+                for (int j = 0; j < i; j++) {
+                    long distance = Math.abs(offsets[i] - offsets[j]);
+                    if (distance < line) {
+                        problems.add(hot[j] + " and " + hot[i] + " are only " + distance + " bytes apart");
+                    }
+                }
+            }
+            return problems;
+        }
+
+        /**
+         * 布局不对就抛异常，给 @Setup 用。
+         */
+        public static void verify(Class<?> clazz, int line, String... hot) {
+            List<String> problems = check(clazz, line, hot);
+            if (!problems.isEmpty()) {
+                throw new IllegalStateException(clazz.getName() + " is not padded to " + line + " bytes: " + problems);
+            }
+        }
+
+        /**
+         * 类似 JOL 的输出：每个字段的偏移和大小，连续的填充字段合并成一行。
+         */
+        public static void print(Class<?> clazz, int line, String... hot) {
+            System.out.printf("%s (%d bytes)%n", clazz.getName(), instanceSize(clazz));
+            List<Slot> slots = fields(clazz);
+            for (int i = 0; i < slots.size(); i++) {
+                Slot s = slots.get(i);
+                int j = i;
+                while (j + 1 < slots.size() && isPadding(slots.get(j + 1)) && isPadding(s)) {
+                    j++;
+                }
+                if (j > i) {
+                    System.out.printf("  %6d %6d  (%d padding fields)%n", s.offset,
+                            slots.get(j).offset + slots.get(j).size - s.offset, j - i + 1);
+                    i = j;
+                } else {
+                    System.out.printf("  %6d %6d  %s%n", s.offset, s.size, s.name);
+                }
+            }
+            List<String> problems = check(clazz, line, hot);
+            System.out.println(problems.isEmpty() ? "  OK" : "  BROKEN: " + problems);
+        }
+
+        private static boolean isPadding(Slot s) {
+            String name = s.name.substring(s.name.indexOf('.') + 1);
+            return name.matches("[p-z]\\d+");
+        }
+    }
+
+    /**
+     * 生成继承方式填充的类的源代码。
+     * <p>
+     * 每个热点字段单独放在一层，前后各是一层 line 个 byte 的填充，
+     * 最后一个类名为 name_(2 * 字段数)，继承它就能得到填充好的字段。
+     *
+     * @param hot 形如 "int:readOnly" 的字段声明
+     */
+    public static String generate(String name, int line, String... hot) {
+        StringBuilder sb = new StringBuilder();
+        int level = 0;
+        char prefix = 'p';
+        appendPadding(sb, name, level++, line, prefix++);
+        for (int i = 0; i < hot.length; i++) {
+            String[] typeAndName = hot[i].split(":");
+            sb.append("    public static class ").append(name).append('_').append(level)
+                    .append(" extends ").append(name).append('_').append(level - 1).append(" {\n")
+                    .append("        ").append(typeAndName[0]).append(' ').append(typeAndName[1]).append(";\n")
+                    .append("    }\n\n");
+            level++;
+            appendPadding(sb, name, level++, line, prefix++);
+        }
+        return sb.toString();
+    }
+
+    private static void appendPadding(StringBuilder sb, String name, int level, int line, char prefix) {
+        sb.append("    public static class ").append(name).append('_').append(level);
+        if (level > 0) {
+            sb.append(" extends ").append(name).append('_').append(level - 1);
+        }
+        sb.append(" {\n");
+        for (int row = 0; row < line / 8; row++) {
+            sb.append("        byte");
+            for (int k = 0; k < 8; k++) {
+                sb.append(k == 0 ? " " : ", ").append(prefix).append(String.format("%02d%d", row, k + 1));
+            }
+            sb.append(";\n");
+        }
+        sb.append("    }\n\n");
+    }
+
+    /*
+     * ================================ 生成的类 ================================
+     */
+
+    // 以下由 main generate Generated int:readOnly int:writeOnly 生成，不要手改
+
+    public static class Generated_0 {
+        byte p001, p002, p003, p004, p005, p006, p007, p008;
+        byte p011, p012, p013, p014, p015, p016, p017, p018;
+        byte p021, p022, p023, p024, p025, p026, p027, p028;
+        byte p031, p032, p033, p034, p035, p036, p037, p038;
+        byte p041, p042, p043, p044, p045, p046, p047, p048;
+        byte p051, p052, p053, p054, p055, p056, p057, p058;
+        byte p061, p062, p063, p064, p065, p066, p067, p068;
+        byte p071, p072, p073, p074, p075, p076, p077, p078;
+        byte p081, p082, p083, p084, p085, p086, p087, p088;
+        byte p091, p092, p093, p094, p095, p096, p097, p098;
+        byte p101, p102, p103, p104, p105, p106, p107, p108;
+        byte p111, p112, p113, p114, p115, p116, p117, p118;
+        byte p121, p122, p123, p124, p125, p126, p127, p128;
+        byte p131, p132, p133, p134, p135, p136, p137, p138;
+        byte p141, p142, p143, p144, p145, p146, p147, p148;
+        byte p151, p152, p153, p154, p155, p156, p157, p158;
+    }
+
+    public static class Generated_1 extends Generated_0 {
+        int readOnly;
+    }
+
+    public static class Generated_2 extends Generated_1 {
+        byte q001, q002, q003, q004, q005, q006, q007, q008;
+        byte q011, q012, q013, q014, q015, q016, q017, q018;
+        byte q021, q022, q023, q024, q025, q026, q027, q028;
+        byte q031, q032, q033, q034, q035, q036, q037, q038;
+        byte q041, q042, q043, q044, q045, q046, q047, q048;
+        byte q051, q052, q053, q054, q055, q056, q057, q058;
+        byte q061, q062, q063, q064, q065, q066, q067, q068;
+        byte q071, q072, q073, q074, q075, q076, q077, q078;
+        byte q081, q082, q083, q084, q085, q086, q087, q088;
+        byte q091, q092, q093, q094, q095, q096, q097, q098;
+        byte q101, q102, q103, q104, q105, q106, q107, q108;
+        byte q111, q112, q113, q114, q115, q116, q117, q118;
+        byte q121, q122, q123, q124, q125, q126, q127, q128;
+        byte q131, q132, q133, q134, q135, q136, q137, q138;
+        byte q141, q142, q143, q144, q145, q146, q147, q148;
+        byte q151, q152, q153, q154, q155, q156, q157, q158;
+    }
+
+    public static class Generated_3 extends Generated_2 {
+        int writeOnly;
+    }
+
+    public static class Generated_4 extends Generated_3 {
+        byte r001, r002, r003, r004, r005, r006, r007, r008;
+        byte r011, r012, r013, r014, r015, r016, r017, r018;
+        byte r021, r022, r023, r024, r025, r026, r027, r028;
+        byte r031, r032, r033, r034, r035, r036, r037, r038;
+        byte r041, r042, r043, r044, r045, r046, r047, r048;
+        byte r051, r052, r053, r054, r055, r056, r057, r058;
+        byte r061, r062, r063, r064, r065, r066, r067, r068;
+        byte r071, r072, r073, r074, r075, r076, r077, r078;
+        byte r081, r082, r083, r084, r085, r086, r087, r088;
+        byte r091, r092, r093, r094, r095, r096, r097, r098;
+        byte r101, r102, r103, r104, r105, r106, r107, r108;
+        byte r111, r112, r113, r114, r115, r116, r117, r118;
+        byte r121, r122, r123, r124, r125, r126, r127, r128;
+        byte r131, r132, r133, r134, r135, r136, r137, r138;
+        byte r141, r142, r143, r144, r145, r146, r147, r148;
+        byte r151, r152, r153, r154, r155, r156, r157, r158;
+    }
+
+    @State(Scope.Group)
+    public static class StateGenerated extends Generated_4 {
+        @Setup
+        public void verify() {
+            Layout.verify(StateGenerated.class, CACHE_LINE, "readOnly", "writeOnly");
+        }
+    }
+
+    @Benchmark
+    @Group("generated")
+    public int reader(StateGenerated s) {
+        return s.readOnly;
+    }
+
+    @Benchmark
+    @Group("generated")
+    public void writer(StateGenerated s) {
+        s.writeOnly++;
+    }
+
+    /**
+     * 带参数 generate 时只生成代码，例如：
+     * {@code generate Generated int:readOnly int:writeOnly}。
+     * <p>
+     * 否则先打印 JMHSample_22 各种写法和生成的类的布局，再和 JMHSample_22 一起跑。
+     */
+    public static void main(String[] args) throws RunnerException {
+        if (args.length > 1 && args[0].equals("generate")) {
+            String[] hot = new String[args.length - 2];
+            System.arraycopy(args, 2, hot, 0, hot.length);
+            System.out.print(generate(args[1], CACHE_LINE, hot));
+            return;
+        }
+
+        Class<?>[] states = {
+                JMHSample_22_FalseSharing.StateBaseline.class,
+                JMHSample_22_FalseSharing.StatePadded.class,
+                JMHSample_22_FalseSharing.StateHierarchy.class,
+                JMHSample_22_FalseSharing.StateContended.class,
+                StateGenerated.class,
+        };
+        for (Class<?> c : states) {
+            Layout.print(c, CACHE_LINE, "readOnly", "writeOnly");
+        }
+
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_22_FalseSharing.class.getSimpleName())
+                .include(JMHSample_48_PaddingLayout.class.getSimpleName())
+                .threads(Runtime.getRuntime().availableProcessors())
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link JMHSample_22_FalseSharing} 只有一个读线程和一个写线程。
+ * 更常见的情况是 N 个线程各自往一个共享的 long[] 里自己的那一格写统计数据，
+ * 格子挨在一起，N 个线程就在同样几个 cache line 上来回争抢。
+ * <p>
+ * {@link PaddedLongArray} 把每一格隔开 stride 字节：
+ * <ul>
+ * <li> 8：不填充，和普通的 long[] 一样；
+ * <li> 64：每格独占一个 cache line；
+ * <li> 128：连相邻的两个 cache line 也不共享，对付成对预取。
+ * </ul>
+ * 每个线程只写自己的一格，用 lazySet 发布，读的一方看到的是最近写入的值。
+ * <p>
+ * 数组放在 Scope.Group 的状态里，组内的线程共享；
+ * main 里把组内的线程数从 1 翻倍到 CPU 数，看每个线程的吞吐量怎么随线程数下降。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(3)
+public class JMHSample_49_PaddedLongArray {
+
+    /**
+     * 每格之间隔开 stride 字节的 long 数组。
+     * <p>
+     * 第一格前面也空出 stride 字节，不和数组头（以及堆上前一个对象）共享 cache line。
+     * 每格只能有一个线程写。
+     */
+    public static class PaddedLongArray {
+        private final AtomicLongArray data;
+        private final int step;
+        private final int length;
+
+        public PaddedLongArray(int length, int strideBytes) {
+            if (strideBytes < 8 || strideBytes % 8 != 0) {
+                throw new IllegalArgumentException("Stride must be a positive multiple of 8: " + strideBytes);
+            }
+            this.length = length;
+            this.step = strideBytes / 8;
+            this.data = new AtomicLongArray((length + 2) * step);
+        }
+
+        private int index(int i) {
+            if (i < 0 || i >= length) {
+                throw new IndexOutOfBoundsException("Index " + i + ", length " + length);
+            }
+            return (i + 1) * step;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public long get(int i) {
+            return data.get(index(i));
+        }
+
+        /**
+         * 单写者的累加：读出来加上再 lazySet 回去，不需要 CAS。
+         */
+        public void add(int i, long delta) {
+            int idx = index(i);
+            data.lazySet(idx, data.get(idx) + delta);
+        }
+
+        public long sum() {
+            long sum = 0;
+            for (int i = 0; i < length; i++) {
+                sum += data.get((i + 1) * step);
+            }
+            return sum;
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Stats {
+        @Param({"8", "64", "128"})
+        public int stride;
+
+        PaddedLongArray array;
+
+        @Setup
+        public void setup(BenchmarkParams params) {
+            array = new PaddedLongArray(params.getThreads(), stride);
+        }
+    }
+
+    /**
+     * 每个线程在组内的编号，就是它要写的那一格。
+     */
+    @State(Scope.Thread)
+    public static class Slot {
+        int index;
+
+        @Setup
+        public void setup(ThreadParams params) {
+            index = params.getGroupThreadIndex();
+        }
+    }
+
+    @Benchmark
+    @Group("stats")
+    public void update(Stats stats, Slot slot) {
+        stats.array.add(slot.index, 1);
+    }
+
+    /**
+     * 结果里的分数是整个组的吞吐量，除以线程数就是每个线程的。
+     * 没有伪共享的话，总吞吐量应该随线程数线性增长。
+     */
+    public static void main(String[] args) throws RunnerException {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cpus; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_49_PaddedLongArray.class.getSimpleName())
+                    .threadGroups(threads)
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+
+}
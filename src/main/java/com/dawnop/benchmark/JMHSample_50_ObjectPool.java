@@ -0,0 +1,338 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * {@link JMHSample_29_StatesDAG} 的 Shared 用 synchronized 的 LinkedList 分发 Counter，
+ * 所有线程排队拿同一把锁，线程一多就成了瓶颈。连接池、缓冲区池也是同样的模式。
+ * <p>
+ * {@link ObjectPool} 是一个无锁的对象池：
+ * <ul>
+ * <li> a) 每个线程先看自己的缓存，上次还回来的对象就在那里，没有任何同步；
+ * <li> b) 缓存是空的，就从槽位数组里 CAS 拿一个，每个线程从不同的位置开始找，减少冲突；
+ * <li> c) 还回来的时候先放进自己的缓存，缓存满了才 CAS 放回槽位。
+ * </ul>
+ * 代价是别的线程缓存里的对象看不到，所以池子看起来空了的时候，可以用 factory 新建一个。
+ * <p>
+ * 基准测试用同样的 acquire/release 比较 synchronized LinkedList、
+ * {@link ConcurrentLinkedQueue}、{@link ArrayBlockingQueue} 和 ObjectPool，main 里把线程数从 1 扫到 128。
+ * <p>
+ * 每个线程一次只借一个对象的话，还回来的对象总是放进自己的缓存，下次又从缓存里拿走，
+ * ObjectPool 测到的只是一次 ThreadLocal.get，槽位数组根本没有用上。所以：
+ * <ul>
+ * <li> borrow：每个线程一次借几个对象，池子里一共有 线程数 × borrow 个对象。
+ *      borrow = 2 时第二个对象总要去槽位里 CAS，还回去的时候也有一个要放回槽位；
+ * <li> poolNoCache：不用线程缓存的 ObjectPool，每次都走槽位数组。
+ * </ul>
+ * {@link Paths} 数出每次借到的对象来自哪里，结果里的 cacheHits、slotHits 就是两条路径各自的吞吐量，
+ * main 最后打印缓存命中率。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_50_ObjectPool {
+
+    public interface Pool<T> {
+        /**
+         * 池子空了返回 null。
+         */
+        T acquire();
+
+        void release(T t);
+    }
+
+    /**
+     * 无锁对象池。
+     */
+    public static class ObjectPool<T> implements Pool<T> {
+        private final AtomicReferenceArray<T> slots;
+        private final int mask;
+        // 包一层，放回缓存的时候不用 ThreadLocal.set
+        private final ThreadLocal<Local> cache = ThreadLocal.withInitial(Local::new);
+        private final boolean threadCache;
+        private final Supplier<? extends T> factory;
+
+        /**
+         * 线程自己的缓存，顺便数一数 acquire 走了哪条路径。
+         * 计数只有自己的线程写，不需要同步。
+         */
+        static final class Local {
+            Object item;
+            long cacheHits;
+            long slotHits;
+            long created;
+        }
+
+        /**
+         * @param items       一开始放进池子的对象
+         * @param threadCache 为 false 时不用线程缓存，每次都走槽位数组
+         * @param factory     池子空了的时候新建对象，为 null 时 acquire 返回 null
+         */
+        public ObjectPool(Collection<? extends T> items, boolean threadCache, Supplier<? extends T> factory) {
+            int n = 1;
+            while (n < items.size()) {
+                n <<= 1;
+            }
+            this.slots = new AtomicReferenceArray<>(n);
+            this.mask = n - 1;
+            this.threadCache = threadCache;
+            this.factory = factory;
+            int i = 0;
+            for (T t : items) {
+                slots.set(i++, t);
+            }
+        }
+
+        public ObjectPool(Collection<? extends T> items) {
+            this(items, true, null);
+        }
+
+        /**
+         * 当前线程的计数。
+         */
+        Local local() {
+            return cache.get();
+        }
+
+        /**
+         * 每个线程固定从一个位置开始找，线程不多的时候基本不会互相冲突。
+         */
+        private int start() {
+            long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T acquire() {
+            Local c = cache.get();
+            if (c.item != null) {
+                T t = (T) c.item;
+                c.item = null;
+                c.cacheHits++;
+                return t;
+            }
+            int start = start();
+            for (int k = 0; k <= mask; k++) {
+                int i = (start + k) & mask;
+                T t = slots.get(i);
+                if (t != null && slots.compareAndSet(i, t, null)) {
+                    c.slotHits++;
+                    return t;
+                }
+            }
+            if (factory == null) {
+                return null;
+            }
+            c.created++;
+            return factory.get();
+        }
+
+        /**
+         * 槽位也满了的话，这个对象就被丢掉了，只有用了 factory 才会出现这种情况。
+         */
+        @Override
+        public void release(T t) {
+            if (threadCache) {
+                Local c = cache.get();
+                if (c.item == null) {
+                    c.item = t;
+                    return;
+                }
+            }
+            int start = start();
+            for (int k = 0; k <= mask; k++) {
+                int i = (start + k) & mask;
+                if (slots.get(i) == null && slots.compareAndSet(i, null, t)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * JMHSample_29 原来的做法。
+     */
+    static class SynchronizedPool<T> implements Pool<T> {
+        private final Queue<T> available = new LinkedList<>();
+
+        SynchronizedPool(Collection<? extends T> items) {
+            available.addAll(items);
+        }
+
+        @Override
+        public synchronized T acquire() {
+            return available.poll();
+        }
+
+        @Override
+        public synchronized void release(T t) {
+            available.offer(t);
+        }
+    }
+
+    static class QueuePool<T> implements Pool<T> {
+        private final Queue<T> available;
+
+        QueuePool(Queue<T> available, Collection<? extends T> items) {
+            this.available = available;
+            available.addAll(items);
+        }
+
+        @Override
+        public T acquire() {
+            return available.poll();
+        }
+
+        @Override
+        public void release(T t) {
+            available.offer(t);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"synchronized", "CLQ", "ABQ", "pool", "poolNoCache"})
+        public String impl;
+
+        @Param({"1", "2"})
+        public int borrow;
+
+        Pool<JMHSample_29_StatesDAG.Counter> pool;
+
+        @Setup
+        public void setup(BenchmarkParams params) {
+            List<JMHSample_29_StatesDAG.Counter> all = new ArrayList<>();
+            for (int c = 0; c < params.getThreads() * borrow; c++) {
+                all.add(new JMHSample_29_StatesDAG.Counter());
+            }
+            switch (impl) {
+                case "synchronized":
+                    pool = new SynchronizedPool<>(all);
+                    break;
+                case "CLQ":
+                    pool = new QueuePool<>(new ConcurrentLinkedQueue<>(), all);
+                    break;
+                case "ABQ":
+                    pool = new QueuePool<>(new ArrayBlockingQueue<>(all.size()), all);
+                    break;
+                case "pool":
+                    pool = new ObjectPool<>(all);
+                    break;
+                case "poolNoCache":
+                    pool = new ObjectPool<>(all, false, null);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown pool: " + impl);
+            }
+        }
+    }
+
+    /**
+     * ObjectPool 的 acquire 各条路径的次数，其他实现都是 0。
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Paths {
+        private ObjectPool.Local local = new ObjectPool.Local();
+
+        @Setup(Level.Iteration)
+        public void clean(Shared shared) {
+            if (shared.pool instanceof ObjectPool) {
+                local = ((ObjectPool<?>) shared.pool).local();
+            }
+            local.cacheHits = 0;
+            local.slotHits = 0;
+            local.created = 0;
+        }
+
+        public long cacheHits() {
+            return local.cacheHits;
+        }
+
+        public long slotHits() {
+            return local.slotHits;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Borrowed {
+        JMHSample_29_StatesDAG.Counter[] items;
+
+        @Setup
+        public void setup(Shared shared) {
+            items = new JMHSample_29_StatesDAG.Counter[shared.borrow];
+        }
+    }
+
+    /**
+     * 借 borrow 个对象，用一下，再倒着还回去。
+     * 池子里的对象是线程数的 borrow 倍，正常情况下总能借到。
+     */
+    @Benchmark
+    public int acquireRelease(Shared shared, Borrowed b, Paths paths) {
+        JMHSample_29_StatesDAG.Counter[] items = b.items;
+        int x = 0;
+        int n = 0;
+        while (n < items.length) {
+            JMHSample_29_StatesDAG.Counter c = shared.pool.acquire();
+            if (c == null) {
+                break;
+            }
+            x += c.inc();
+            items[n++] = c;
+        }
+        while (n > 0) {
+            shared.pool.release(items[--n]);
+            items[n] = null;
+        }
+        return x;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        List<String> hitRates = new ArrayList<>();
+        for (int threads = 1; threads <= 128; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_50_ObjectPool.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+
+            for (RunResult r : new Runner(opt).run()) {
+                Result cache = r.getSecondaryResults().get("cacheHits");
+                Result slot = r.getSecondaryResults().get("slotHits");
+                if (cache == null || slot == null || cache.getScore() + slot.getScore() == 0) {
+                    continue;
+                }
+                hitRates.add(String.format("%4d threads  %-12s borrow=%s  cache hit rate %5.1f%%", threads,
+                        r.getParams().getParam("impl"), r.getParams().getParam("borrow"),
+                        100 * cache.getScore() / (cache.getScore() + slot.getScore())));
+            }
+        }
+
+        System.out.println();
+        for (String line : hitRates) {
+            System.out.println(line);
+        }
+    }
+
+}
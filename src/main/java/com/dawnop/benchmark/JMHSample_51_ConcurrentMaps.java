@@ -0,0 +1,521 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * {@link JMHSample_31_InfraParams} 只比较了两种并发度的 {@link ConcurrentHashMap}，
+ * 每个线程 remove/put 自己的一片 String key。
+ * <p>
+ * 这个例子把 map 换成 @Param 可选的几种实现，key 都是 long：
+ * <ul>
+ * <li> chm：{@link ConcurrentHashMap}，作为基准；
+ * <li> openAddressing：{@link LongOpenAddressingMap}，key 和 value 交错放在一个 long 数组里，CAS 占位，不装箱；
+ * <li> striped：{@link StripedMap}，按 key 分成多段，每段一个 HashMap 和一把锁；
+ * <li> cow：{@link CopyOnWriteMap}，读不加锁，写的时候整个复制一份，只适合读多写少，
+ *      key 一多每次写都要复制很久，所以默认不跑，main 里只在小的 size 下测它；
+ * <li> splitOrdered：{@link SplitOrderedMap}，Shalev 和 Shavit 的无锁分裂有序链表，扩容时不用搬元素。
+ * </ul>
+ * 负载由三个参数决定：
+ * <ul>
+ * <li> readPercent：读的比例，95 或 50；
+ * <li> dist：key 的分布，uniform 或者 zipf (θ = 0.99，少数 key 非常热)；
+ * <li> size：key 的个数，从放得进 L1 到远远超过 LLC。
+ * </ul>
+ * 所有 key 在开始前都已经放进 map 了，所以写都是更新，不会扩容。
+ * 和 JMHSample_31 一样，用 ThreadParams 给每个线程分一片 key：读的是整个 key 空间，写的只是自己那一片。
+ * <p>
+ * 这些 map 都不支持 remove，这里也不测。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class JMHSample_51_ConcurrentMaps {
+
+    /**
+     * long 到 long 的 map，value 为 0 表示不存在。
+     */
+    public interface LongMap {
+        long get(long key);
+
+        void put(long key, long value);
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static int tableSize(int expected) {
+        int n = 2;
+        while (n < expected) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    static class Chm implements LongMap {
+        private final ConcurrentHashMap<Long, Long> map;
+
+        Chm(int expected) {
+            map = new ConcurrentHashMap<>(expected * 2);
+        }
+
+        @Override
+        public long get(long key) {
+            Long v = map.get(key);
+            return v == null ? 0 : v;
+        }
+
+        @Override
+        public void put(long key, long value) {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * 开放寻址、线性探测，容量固定为期望大小的两倍，不扩容。
+     * <p>
+     * 槽位 2i 放 key，2i + 1 放 value，一次查找通常只碰一个 cache line。
+     * 空槽位的 key 是 Long.MIN_VALUE，所以这个值不能当 key。
+     * 插入时先 CAS 占住 key，再写 value，中间读到的 value 是 0，也就是“还不存在”。
+     */
+    public static class LongOpenAddressingMap implements LongMap {
+        static final long EMPTY = Long.MIN_VALUE;
+
+        private final AtomicLongArray table;
+        private final int mask;
+
+        public LongOpenAddressingMap(int expected) {
+            int capacity = tableSize(expected * 2);
+            mask = capacity - 1;
+            table = new AtomicLongArray(capacity * 2);
+            for (int i = 0; i < capacity; i++) {
+                table.set(2 * i, EMPTY);
+            }
+        }
+
+        @Override
+        public long get(long key) {
+            int i = hash(key) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long k = table.get(2 * i);
+                if (k == key) {
+                    return table.get(2 * i + 1);
+                }
+                if (k == EMPTY) {
+                    return 0;
+                }
+                i = (i + 1) & mask;
+            }
+            return 0;
+        }
+
+        @Override
+        public void put(long key, long value) {
+            if (key == EMPTY) {
+                throw new IllegalArgumentException("Long.MIN_VALUE is reserved");
+            }
+            int i = hash(key) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long k = table.get(2 * i);
+                if (k == EMPTY) {
+                    if (table.compareAndSet(2 * i, EMPTY, key)) {
+                        table.set(2 * i + 1, value);
+                        return;
+                    }
+                    k = table.get(2 * i);
+                }
+                if (k == key) {
+                    table.set(2 * i + 1, value);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            throw new IllegalStateException("Map is full");
+        }
+    }
+
+    /**
+     * 分段加锁，段数是线程数的 16 倍，不同线程碰到同一段的机会不大。
+     */
+    static class StripedMap implements LongMap {
+        private final HashMap<Long, Long>[] stripes;
+        private final int mask;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        StripedMap(int expected, int threads) {
+            int n = tableSize(16 * threads);
+            mask = n - 1;
+            stripes = new HashMap[n];
+            for (int i = 0; i < n; i++) {
+                stripes[i] = new HashMap<>(2 * expected / n + 1);
+            }
+        }
+
+        @Override
+        public long get(long key) {
+            HashMap<Long, Long> m = stripes[hash(key) & mask];
+            Long v;
+            synchronized (m) {
+                v = m.get(key);
+            }
+            return v == null ? 0 : v;
+        }
+
+        @Override
+        public void put(long key, long value) {
+            HashMap<Long, Long> m = stripes[hash(key) & mask];
+            synchronized (m) {
+                m.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * 读的时候直接读 volatile 引用，写的时候加锁复制一份再换掉引用。
+     * 每次写都是 O(n)，size 很大的时候没法测，见 main。
+     */
+    static class CopyOnWriteMap implements LongMap {
+        private volatile Map<Long, Long> map = new HashMap<>();
+
+        @Override
+        public long get(long key) {
+            Long v = map.get(key);
+            return v == null ? 0 : v;
+        }
+
+        @Override
+        public synchronized void put(long key, long value) {
+            Map<Long, Long> copy = new HashMap<>(map);
+            copy.put(key, value);
+            map = copy;
+        }
+    }
+
+    /**
+     * 无锁的分裂有序链表 (split-ordered list)。
+     * <p>
+     * 所有元素在同一个有序链表里，排序用的是 hash 按位反转之后的值 (so key)。
+     * 桶 b 的哨兵节点的 so key 是 reverse(b)，普通节点是 reverse(hash | 最高位)，
+     * 所以哨兵是偶数、普通节点是奇数，而且桶 b 的所有元素都紧跟在它的哨兵后面。
+     * 桶的个数翻倍时，桶 b + size 的元素本来就排在桶 b 里的后半段，
+     * 只要在中间插一个新的哨兵，不用搬动任何元素。
+     * <p>
+     * 没有删除，所以插入只需要一次 CAS，失败了从前驱继续往后找。
+     * 桶数组按期望大小一次分配好，平均每个桶超过两个元素时把桶的个数翻倍。
+     */
+    public static class SplitOrderedMap implements LongMap {
+        private static final int LOAD = 2;
+
+        static final class Node {
+            final int soKey;
+            final long key;
+            volatile long value;
+            volatile Node next;
+
+            Node(int soKey, long key, long value) {
+                this.soKey = soKey;
+                this.key = key;
+                this.value = value;
+            }
+        }
+
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        private final AtomicReferenceArray<Node> buckets;
+        private final AtomicInteger size = new AtomicInteger(2);
+        private final AtomicInteger count = new AtomicInteger();
+
+        public SplitOrderedMap(int expected) {
+            buckets = new AtomicReferenceArray<>(tableSize(expected / LOAD));
+            buckets.set(0, new Node(0, 0, 0));
+        }
+
+        private static int regularKey(int h) {
+            return Integer.reverse(h | 0x80000000);
+        }
+
+        private Node bucket(int h) {
+            int b = h & (size.get() - 1);
+            Node sentinel = buckets.get(b);
+            return sentinel != null ? sentinel : initBucket(b);
+        }
+
+        /**
+         * 父桶就是去掉最高位的那个桶，先保证父桶有哨兵，再从父桶的哨兵开始插入自己的哨兵。
+         */
+        private Node initBucket(int b) {
+            int parent = b & ~Integer.highestOneBit(b);
+            Node p = buckets.get(parent);
+            if (p == null) {
+                p = initBucket(parent);
+            }
+            Node sentinel = insert(p, new Node(Integer.reverse(b), 0, 0));
+            // 别的线程可能抢先设置了，insert 保证大家拿到的是同一个节点
+            buckets.compareAndSet(b, null, sentinel);
+            return sentinel;
+        }
+
+        /**
+         * 插入 node，如果已经有相同的节点就返回那个节点。
+         * 哨兵和普通节点的 so key 奇偶不同，所以相同的 so key 只会在同一类节点之间出现。
+         */
+        private static Node insert(Node start, Node node) {
+            Node pred = start;
+            while (true) {
+                Node curr = pred.next;
+                while (curr != null) {
+                    int c = Integer.compareUnsigned(curr.soKey, node.soKey);
+                    if (c > 0) {
+                        break;
+                    }
+                    if (c == 0 && curr.key == node.key) {
+                        return curr;
+                    }
+                    pred = curr;
+                    curr = curr.next;
+                }
+                node.next = curr;
+                if (NEXT.compareAndSet(pred, curr, node)) {
+                    return node;
+                }
+                // 有人抢先在 pred 后面插入了，没有删除，所以 pred 仍然有效
+            }
+        }
+
+        private static Node find(Node start, int soKey, long key) {
+            for (Node curr = start.next; curr != null; curr = curr.next) {
+                int c = Integer.compareUnsigned(curr.soKey, soKey);
+                if (c > 0) {
+                    return null;
+                }
+                if (c == 0 && curr.key == key) {
+                    return curr;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long get(long key) {
+            int h = hash(key);
+            Node n = find(bucket(h), regularKey(h), key);
+            return n == null ? 0 : n.value;
+        }
+
+        @Override
+        public void put(long key, long value) {
+            int h = hash(key);
+            Node start = bucket(h);
+            Node n = find(start, regularKey(h), key);
+            if (n != null) {
+                n.value = value;
+                return;
+            }
+            Node node = new Node(regularKey(h), key, value);
+            Node inserted = insert(start, node);
+            if (inserted != node) {
+                // 别的线程抢先插入了同一个 key
+                inserted.value = value;
+                return;
+            }
+            int s = size.get();
+            if (count.incrementAndGet() > LOAD * s && 2 * s <= buckets.length()) {
+                size.compareAndSet(s, 2 * s);
+            }
+        }
+    }
+
+    /**
+     * Zipf 分布的随机数，算法来自 Gray 等人的 "Quickly Generating Billion-Record Synthetic Databases"，
+     * YCSB 用的也是这个。返回 [0, n)，0 最热。
+     */
+    static class Zipf {
+        private final int n;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetan = zeta(n, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        int next(Random r) {
+            double u = r.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"chm", "openAddressing", "striped", "splitOrdered"})
+        public String impl;
+
+        /**
+         * 2^10 个 key 大约 16KB，2^16 个大约 1MB，2^22 个大约 64MB（不算装箱）。
+         */
+        @Param({"1024", "65536", "4194304"})
+        public int size;
+
+        LongMap map;
+
+        @Setup
+        public void setup(BenchmarkParams params) {
+            if (Integer.bitCount(size) != 1) {
+                throw new IllegalStateException("Size must be a power of two: " + size);
+            }
+            switch (impl) {
+                case "chm":
+                    map = new Chm(size);
+                    break;
+                case "openAddressing":
+                    map = new LongOpenAddressingMap(size);
+                    break;
+                case "striped":
+                    map = new StripedMap(size, params.getThreads());
+                    break;
+                case "cow":
+                    map = new CopyOnWriteMap();
+                    break;
+                case "splitOrdered":
+                    map = new SplitOrderedMap(size);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown map: " + impl);
+            }
+            if (map instanceof CopyOnWriteMap) {
+                // 逐个 put 是 O(n²)
+                Map<Long, Long> init = new HashMap<>();
+                for (long k = 0; k < size; k++) {
+                    init.put(k, k + 1);
+                }
+                ((CopyOnWriteMap) map).map = init;
+            } else {
+                for (long k = 0; k < size; k++) {
+                    map.put(k, k + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * 每个线程预先生成一串操作，测量时按顺序循环执行，不在测量里算随机数。
+     */
+    @State(Scope.Thread)
+    public static class Workload {
+        static final int OPS = 1 << 16;
+
+        @Param({"95", "50"})
+        public int readPercent;
+
+        @Param({"uniform", "zipf"})
+        public String dist;
+
+        final long[] keys = new long[OPS];
+        final boolean[] writes = new boolean[OPS];
+        int cursor;
+
+        @Setup
+        public void setup(Shared shared, ThreadParams threads) {
+            int n = shared.size;
+            int slice = Math.max(1, n / threads.getThreadCount());
+            int sliceStart = slice * threads.getThreadIndex() % n;
+
+            Random r = new Random(threads.getThreadIndex());
+            Zipf all = dist.equals("zipf") ? new Zipf(n, 0.99) : null;
+            Zipf own = dist.equals("zipf") ? new Zipf(slice, 0.99) : null;
+            for (int i = 0; i < OPS; i++) {
+                writes[i] = r.nextInt(100) >= readPercent;
+                if (writes[i]) {
+                    keys[i] = sliceStart + scramble(own == null ? r.nextInt(slice) : own.next(r), slice);
+                } else {
+                    keys[i] = scramble(all == null ? r.nextInt(n) : all.next(r), n);
+                }
+            }
+        }
+
+        /**
+         * 把排名打散到整个 key 空间，热的 key 不会都挤在一起。
+         * n 是 2 的幂时，乘一个奇数再取模是一一映射。
+         */
+        private static long scramble(int rank, int n) {
+            if (Integer.bitCount(n) != 1) {
+                return rank;
+            }
+            return (rank * 0x9E3779B97F4A7C15L) & (n - 1);
+        }
+    }
+
+    @Benchmark
+    public long op(Shared shared, Workload w) {
+        int i = w.cursor++ & (Workload.OPS - 1);
+        long key = w.keys[i];
+        if (w.writes[i]) {
+            shared.map.put(key, key + 1);
+            return key;
+        }
+        return shared.map.get(key);
+    }
+
+    /**
+     * copy-on-write 只测小的 size。
+     */
+    public static void main(String[] args) throws RunnerException {
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        Options small = new OptionsBuilder()
+                .include(JMHSample_51_ConcurrentMaps.class.getSimpleName())
+                .param("size", "1024", "65536")
+                .param("impl", "chm", "openAddressing", "striped", "cow", "splitOrdered")
+                .threads(threads)
+                .build();
+        new Runner(small).run();
+
+        Options large = new OptionsBuilder()
+                .parent(small)
+                .param("size", "4194304")
+                .param("impl", "chm", "openAddressing", "striped", "splitOrdered")
+                .build();
+        new Runner(large).run();
+    }
+
+}
@@ -0,0 +1,360 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.dawnop.benchmark.JMHSample_31_InfraParams.THREAD_SLICE;
+
+/**
+ * {@link JMHSample_31_InfraParams} 的 key 是每个线程自己拼出来的 "ID" + n 字符串，
+ * 每个 key 是一个 String 对象加一个数组，map 里比较 key 要先跳到 String 再跳到数组。
+ * 如果 key 是从网络或者文件里解析出来的，每次查找还要先 new 一个 String，再算一遍 hash。
+ * <p>
+ * {@link KeyArena} 把所有 key 的字符连续放在一个 char[] 里，hash 在加入的时候算好存起来，
+ * 相同的内容只存一份 (intern)，每个 key 对应一个 id。
+ * {@link Key} 是 id 的轻量视图，hashCode 直接返回缓存的 hash，
+ * 因为 key 都 intern 过了，equals 只需要比较 id。
+ * 用 {@link KeyArena#find(char[], int, int)} 从一段字符里查 key 不分配任何对象。
+ * <p>
+ * 基准测试分两组：
+ * <ul>
+ * <li> measureStrings / measureArena：和 JMHSample_31 一样，每个线程 remove + put 自己那一片 key；
+ * <li> lookupString / lookupArena：从一段文本里切出 key 再 get，模拟解析出来的 key。
+ * </ul>
+ * arena 建好以后是只读的，所有线程可以同时读；建的过程不是线程安全的。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class JMHSample_52_KeyArena {
+
+    /**
+     * key 的存储区。
+     */
+    public static class KeyArena {
+        private char[] slab = new char[1024];
+        private int used;
+        private int[] offsets = new int[64];
+        private int[] lengths = new int[64];
+        private int[] hashes = new int[64];
+        private Key[] views = new Key[64];
+        private int count;
+        // 开放寻址的 intern 表，存 id + 1，0 表示空
+        private int[] index = new int[128];
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * 加入一个 key，已经有相同内容的就返回原来的 id。
+         */
+        public int add(CharSequence s) {
+            char[] chars = new char[s.length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = s.charAt(i);
+            }
+            return add(chars, 0, chars.length);
+        }
+
+        public int add(char[] buf, int off, int len) {
+            int h = hash(buf, off, len);
+            int found = find(h, buf, off, len);
+            if (found >= 0) {
+                return found;
+            }
+            if (count == offsets.length) {
+                int n = count * 2;
+                offsets = Arrays.copyOf(offsets, n);
+                lengths = Arrays.copyOf(lengths, n);
+                hashes = Arrays.copyOf(hashes, n);
+                views = Arrays.copyOf(views, n);
+            }
+            if (used + len > slab.length) {
+                slab = Arrays.copyOf(slab, Math.max(slab.length * 2, used + len));
+            }
+            System.arraycopy(buf, off, slab, used, len);
+            int id = count++;
+            offsets[id] = used;
+            lengths[id] = len;
+            hashes[id] = h;
+            views[id] = new Key(this, id);
+            used += len;
+            if (count * 2 > index.length) {
+                rehash();
+            }
+            insert(id);
+            return id;
+        }
+
+        private void rehash() {
+            index = new int[index.length * 2];
+            for (int id = 0; id < count - 1; id++) {
+                insert(id);
+            }
+        }
+
+        private void insert(int id) {
+            int mask = index.length - 1;
+            int i = spread(hashes[id]) & mask;
+            while (index[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            index[i] = id + 1;
+        }
+
+        /**
+         * 查找 buf[off, off + len) 对应的 key，找不到返回 -1。
+         */
+        public int find(char[] buf, int off, int len) {
+            return find(hash(buf, off, len), buf, off, len);
+        }
+
+        private int find(int h, char[] buf, int off, int len) {
+            int mask = index.length - 1;
+            for (int i = spread(h) & mask; index[i] != 0; i = (i + 1) & mask) {
+                int id = index[i] - 1;
+                if (hashes[id] == h && contentEquals(id, buf, off, len)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+
+        private boolean contentEquals(int id, char[] buf, int off, int len) {
+            if (lengths[id] != len) {
+                return false;
+            }
+            int start = offsets[id];
+            for (int i = 0; i < len; i++) {
+                if (slab[start + i] != buf[off + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 和 String.hashCode 一样的算法，放进 HashMap 里分布也一样。
+         */
+        static int hash(char[] buf, int off, int len) {
+            int h = 0;
+            for (int i = 0; i < len; i++) {
+                h = 31 * h + buf[off + i];
+            }
+            return h;
+        }
+
+        private static int spread(int h) {
+            return (h ^ (h >>> 16)) * 0x9E3779B9;
+        }
+
+        public Key key(int id) {
+            return views[id];
+        }
+
+        /**
+         * 找不到返回 null。
+         */
+        public Key key(char[] buf, int off, int len) {
+            int id = find(buf, off, len);
+            return id < 0 ? null : views[id];
+        }
+
+        public int hash(int id) {
+            return hashes[id];
+        }
+
+        public int length(int id) {
+            return lengths[id];
+        }
+
+        public char charAt(int id, int i) {
+            return slab[offsets[id] + i];
+        }
+    }
+
+    /**
+     * arena 里某个 key 的视图，只有一个引用和一个 int。
+     * 每个 id 只有一个视图对象，加入的时候建好，之后取出来不分配。
+     */
+    public static final class Key implements CharSequence {
+        private final KeyArena arena;
+        private final int id;
+
+        Key(KeyArena arena, int id) {
+            this.arena = arena;
+            this.id = id;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public int hashCode() {
+            return arena.hash(id);
+        }
+
+        /**
+         * 同一个 arena 里内容相同的 key 是同一个 id，也就是同一个视图对象。
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (other.arena == arena) {
+                return false;
+            }
+            return hashCode() == other.hashCode() && toString().contentEquals(other);
+        }
+
+        @Override
+        public int length() {
+            return arena.length(id);
+        }
+
+        @Override
+        public char charAt(int index) {
+            return arena.charAt(id, index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        /**
+         * 会分配新的 String，只用来调试和输出。
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(length());
+            for (int i = 0; i < length(); i++) {
+                sb.append(charAt(i));
+            }
+            return sb.toString();
+        }
+    }
+
+    private ConcurrentHashMap<String, String> strings;
+    private ConcurrentHashMap<Key, Key> keys;
+    private KeyArena arena;
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        int capacity = 16 * THREAD_SLICE * params.getThreads();
+        strings = new ConcurrentHashMap<>(capacity, 0.75f, params.getThreads());
+        keys = new ConcurrentHashMap<>(capacity, 0.75f, params.getThreads());
+        arena = new KeyArena();
+        for (int c = 0; c < THREAD_SLICE * params.getThreads(); c++) {
+            arena.add("ID" + c);
+        }
+    }
+
+    /**
+     * 和 JMHSample_31 的 Ids 一样按线程分片，同时准备好字符串、arena 视图和一段文本。
+     * 文本里的 key 用空格隔开，ends 记录每个 key 的结束位置。
+     */
+    @State(Scope.Thread)
+    public static class Ids {
+        String[] strings;
+        Key[] keys;
+        char[] text;
+        int[] ends;
+
+        @Setup
+        public void setup(JMHSample_52_KeyArena bench, ThreadParams threads) {
+            strings = new String[THREAD_SLICE];
+            keys = new Key[THREAD_SLICE];
+            ends = new int[THREAD_SLICE];
+            StringBuilder sb = new StringBuilder();
+            for (int c = 0; c < THREAD_SLICE; c++) {
+                String s = "ID" + (THREAD_SLICE * threads.getThreadIndex() + c);
+                strings[c] = s;
+                keys[c] = bench.arena.key(bench.arena.find(s.toCharArray(), 0, s.length()));
+                sb.append(s);
+                ends[c] = sb.length();
+                sb.append(' ');
+                bench.strings.put(s, s);
+                bench.keys.put(keys[c], keys[c]);
+            }
+            text = sb.toString().toCharArray();
+        }
+    }
+
+    @Benchmark
+    public void measureStrings(Ids ids) {
+        for (String s : ids.strings) {
+            strings.remove(s);
+            strings.put(s, s);
+        }
+    }
+
+    @Benchmark
+    public void measureArena(Ids ids) {
+        for (Key k : ids.keys) {
+            keys.remove(k);
+            keys.put(k, k);
+        }
+    }
+
+    @Benchmark
+    public int lookupString(Ids ids) {
+        int found = 0;
+        int start = 0;
+        for (int end : ids.ends) {
+            if (strings.get(new String(ids.text, start, end - start)) != null) {
+                found++;
+            }
+            start = end + 1;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int lookupArena(Ids ids) {
+        int found = 0;
+        int start = 0;
+        for (int end : ids.ends) {
+            Key k = arena.key(ids.text, start, end - start);
+            if (k != null && keys.get(k) != null) {
+                found++;
+            }
+            start = end + 1;
+        }
+        return found;
+    }
+
+    /**
+     * 可以加上 -prof gc 看一下：lookupArena 每次操作分配的字节数接近 0，lookupString 每个 key 都要分配；
+     * measure 的两个测试分配的都是 ConcurrentHashMap 的节点，和 key 无关。
+     * <p>
+     * lookupArena 其实查了两次表，先在 arena 里找 id，再查 map。
+     * 既然已经有了 id，map 完全可以换成按 id 下标访问的数组，这是 arena 更大的用处。
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JMHSample_52_KeyArena.class.getSimpleName())
+                .threads(4)
+                .forks(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,456 @@
+package com.dawnop.benchmark;
+
+import com.dawnop.benchmark.JMHSample_42_LatencyHistogram.Histogram;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link JMHSample_18_Control} 用 AtomicBoolean 的 CAS 来回传递，只能看出平均一次要多久。
+ * 这个例子把它扩展成一组线程间通知方式的往返延迟对比：
+ * <ul>
+ * <li> cas：JMHSample_18 的做法，一直 CAS 同一个 AtomicBoolean；
+ * <li> mailbox：请求和应答各是一个递增的序号，分别放在不同的 cache line 上，忙等；
+ * <li> onSpinWait：同 mailbox，忙等的时候调用 Thread.onSpinWait (JDK 9+，反射查找，找不到就是忙等)；
+ * <li> park：同 mailbox，等待的一方 park，写完的一方 unpark 对方；
+ * <li> waitNotify：synchronized + wait/notifyAll；
+ * <li> exchanger：{@link Exchanger#exchange} 一次就是一个来回；
+ * <li> phaser：两个参与者的 {@link Phaser}，每个阶段相当于一次会合。
+ * </ul>
+ * ping 记录每次往返的耗时，用的是 {@link JMHSample_42_LatencyHistogram} 的直方图。
+ * <p>
+ * 和 JMHSample_18 一样，等待的时候要检查 Control.stopMeasurement，否则对方停下以后这边就永远等下去了。
+ * 会阻塞的方式都带超时，超时以后回来检查一下再接着等。
+ * 中途放弃的请求不会搞乱下一轮：应答的序号小于请求的序号就继续等。
+ * <p>
+ * Java 没办法把线程绑到指定的 CPU 上，main 退而求其次，用 taskset 把整个 fork 出来的 JVM 限制在
+ * 一组 CPU 上：只有一个 CPU、同一个物理核的两个超线程、同一个插槽的两个核、不同插槽的两个核。
+ * CPU 拓扑从 /sys/devices/system/cpu 读，找不到对应的组合就跳过。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JMHSample_53_PingPong {
+
+    /**
+     * 阻塞等待的超时，超时以后检查一下是否该停了。
+     */
+    static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public interface Signal {
+        /**
+         * 发出请求，等待应答。
+         */
+        void ping(Control cnt);
+
+        /**
+         * 等待请求，发出应答。
+         */
+        void pong(Control cnt);
+    }
+
+    private static final MethodHandle ON_SPIN_WAIT = onSpinWait();
+
+    private static MethodHandle onSpinWait() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static void spinWait() {
+        if (ON_SPIN_WAIT != null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+
+    /**
+     * JMHSample_18 的 AtomicBoolean：ping 把 false 改成 true，pong 再改回来。
+     */
+    static class Cas implements Signal {
+        private final AtomicBoolean flag = new AtomicBoolean();
+
+        @Override
+        public void ping(Control cnt) {
+            while (!cnt.stopMeasurement && !flag.compareAndSet(false, true)) {
+                // 上一轮放弃了，等 pong 改回来
+            }
+            while (!cnt.stopMeasurement && flag.get()) {
+                // 等应答
+            }
+        }
+
+        @Override
+        public void pong(Control cnt) {
+            while (!cnt.stopMeasurement && !flag.compareAndSet(true, false)) {
+                // 等请求
+            }
+        }
+    }
+
+    /**
+     * 两个递增的序号，中间隔开 128 字节，和数组头也隔开 128 字节。
+     * 请求只有 ping 写，应答只有 pong 写，都不需要 CAS。
+     * 子类决定等待的时候做什么，以及写完以后要不要叫醒对方。
+     */
+    static class Mailbox implements Signal {
+        static final int REQUEST = 16;
+        static final int RESPONSE = 32;
+
+        private final AtomicLongArray slots = new AtomicLongArray(48);
+        // 只有 ping 线程访问
+        private long sent;
+        // 只有 pong 线程访问
+        private long handled;
+
+        @Override
+        public void ping(Control cnt) {
+            long n = ++sent;
+            slots.set(REQUEST, n);
+            wakePong();
+            while (slots.get(RESPONSE) < n && !cnt.stopMeasurement) {
+                idle();
+            }
+        }
+
+        @Override
+        public void pong(Control cnt) {
+            long r;
+            while ((r = slots.get(REQUEST)) == handled) {
+                if (cnt.stopMeasurement) {
+                    return;
+                }
+                idle();
+            }
+            handled = r;
+            slots.set(RESPONSE, r);
+            wakePing();
+        }
+
+        void idle() {
+        }
+
+        void wakePing() {
+        }
+
+        void wakePong() {
+        }
+    }
+
+    static class OnSpinWait extends Mailbox {
+        @Override
+        void idle() {
+            spinWait();
+        }
+    }
+
+    /**
+     * 先 unpark 再 park 也没关系，许可会留着。
+     */
+    static class Park extends Mailbox {
+        private volatile Thread pinger;
+        private volatile Thread ponger;
+
+        @Override
+        public void ping(Control cnt) {
+            if (pinger != Thread.currentThread()) {
+                pinger = Thread.currentThread();
+            }
+            super.ping(cnt);
+        }
+
+        @Override
+        public void pong(Control cnt) {
+            if (ponger != Thread.currentThread()) {
+                ponger = Thread.currentThread();
+            }
+            super.pong(cnt);
+        }
+
+        @Override
+        void idle() {
+            LockSupport.parkNanos(TIMEOUT_NANOS);
+        }
+
+        @Override
+        void wakePing() {
+            Thread t = pinger;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        @Override
+        void wakePong() {
+            Thread t = ponger;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    static class WaitNotify implements Signal {
+        private long request;
+        private long response;
+        private long handled;
+
+        @Override
+        public synchronized void ping(Control cnt) {
+            long n = ++request;
+            notifyAll();
+            try {
+                while (response < n && !cnt.stopMeasurement) {
+                    wait(1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public synchronized void pong(Control cnt) {
+            try {
+                while (request == handled) {
+                    if (cnt.stopMeasurement) {
+                        return;
+                    }
+                    wait(1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            handled = request;
+            response = handled;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 一次 exchange 双方都要到场，本身就是一个来回，ping 和 pong 做的事情一样。
+     */
+    static class ExchangerSignal implements Signal {
+        private final Exchanger<Object> exchanger = new Exchanger<>();
+
+        @Override
+        public void ping(Control cnt) {
+            exchange(cnt);
+        }
+
+        @Override
+        public void pong(Control cnt) {
+            exchange(cnt);
+        }
+
+        private void exchange(Control cnt) {
+            while (!cnt.stopMeasurement) {
+                try {
+                    exchanger.exchange(this, TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    // 检查一下再等
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 超时以后不能再 arrive 一次，只能接着等同一个阶段。
+     */
+    static class PhaserSignal implements Signal {
+        private final Phaser phaser = new Phaser(2);
+
+        @Override
+        public void ping(Control cnt) {
+            await(cnt);
+        }
+
+        @Override
+        public void pong(Control cnt) {
+            await(cnt);
+        }
+
+        private void await(Control cnt) {
+            int phase = phaser.arrive();
+            while (!cnt.stopMeasurement) {
+                try {
+                    phaser.awaitAdvanceInterruptibly(phase, TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    // 检查一下再等
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Channel {
+        @Param({"cas", "mailbox", "onSpinWait", "park", "waitNotify", "exchanger", "phaser"})
+        public String mechanism;
+
+        Signal signal;
+
+        @Setup
+        public void setup() {
+            switch (mechanism) {
+                case "cas":
+                    signal = new Cas();
+                    break;
+                case "mailbox":
+                    signal = new Mailbox();
+                    break;
+                case "onSpinWait":
+                    signal = new OnSpinWait();
+                    break;
+                case "park":
+                    signal = new Park();
+                    break;
+                case "waitNotify":
+                    signal = new WaitNotify();
+                    break;
+                case "exchanger":
+                    signal = new ExchangerSignal();
+                    break;
+                case "phaser":
+                    signal = new PhaserSignal();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown mechanism: " + mechanism);
+            }
+        }
+    }
+
+    /**
+     * 停下来之前那一次往返可能是半途放弃的，不记录。
+     */
+    @Benchmark
+    @Group("pingpong")
+    public void ping(Channel channel, JMHSample_42_LatencyHistogram.Local local, Control cnt) {
+        long start = System.nanoTime();
+        channel.signal.ping(cnt);
+        long took = System.nanoTime() - start;
+        if (local.recording && !cnt.stopMeasurement) {
+            local.histogram.record(took);
+        }
+    }
+
+    @Benchmark
+    @Group("pingpong")
+    public void pong(Channel channel, Control cnt) {
+        channel.signal.pong(cnt);
+    }
+
+    /**
+     * 从 /sys/devices/system/cpu 里找出几种 CPU 组合，值是 taskset 的 CPU 列表，null 表示不限制。
+     */
+    static Map<String, String> placements() {
+        Map<String, String> result = new LinkedHashMap<>();
+        result.put("any", null);
+        File cpus = new File("/sys/devices/system/cpu");
+        if (!new File(cpus, "cpu0/topology").isDirectory() || !new File("/usr/bin/taskset").canExecute()) {
+            return result;
+        }
+        result.put("sameCpu", "0");
+        String socket0 = read(new File(cpus, "cpu0/topology/physical_package_id"));
+        String core0 = read(new File(cpus, "cpu0/topology/core_id"));
+        for (int cpu = 1; new File(cpus, "cpu" + cpu + "/topology").isDirectory(); cpu++) {
+            String socket = read(new File(cpus, "cpu" + cpu + "/topology/physical_package_id"));
+            String core = read(new File(cpus, "cpu" + cpu + "/topology/core_id"));
+            String key;
+            if (!socket.equals(socket0)) {
+                key = "crossSocket";
+            } else if (core.equals(core0)) {
+                key = "smtSiblings";
+            } else {
+                key = "sameSocket";
+            }
+            if (!result.containsKey(key)) {
+                result.put(key, "0," + cpu);
+            }
+        }
+        return result;
+    }
+
+    private static String read(File f) {
+        try {
+            return new String(Files.readAllBytes(f.toPath()), StandardCharsets.US_ASCII).trim();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * 每种组合、每种方式的直方图放在单独的目录里，和 JMHSample_42 一样合并以后打印。
+     * 只有一个 CPU 的时候，忙等的几种方式每次往返都要等调度器把时间片切过去，会非常慢。
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        File root = Files.createTempDirectory("jmh-pingpong").toFile();
+        String[] mechanisms = {"cas", "mailbox", "onSpinWait", "park", "waitNotify", "exchanger", "phaser"};
+        for (Map.Entry<String, String> placement : placements().entrySet()) {
+            for (String mechanism : mechanisms) {
+                File dir = new File(root, placement.getKey() + "-" + mechanism);
+                if (!dir.mkdirs()) {
+                    throw new IOException("Can not create " + dir);
+                }
+                OptionsBuilder builder = new OptionsBuilder();
+                builder.include(JMHSample_53_PingPong.class.getSimpleName())
+                        .param("mechanism", mechanism)
+                        .jvmArgsAppend("-Dlatency.dir=" + dir.getAbsolutePath());
+                if (placement.getValue() != null) {
+                    // 和 JMHSample_25 的槽位一样，用 taskset 启动脚本当作 JVM
+                    String jvm = Platform.pinnedJvm(placement.getValue());
+                    if (jvm == null) {
+                        throw new IOException("Can not create a taskset launcher for cpus " + placement.getValue());
+                    }
+                    builder.jvm(jvm);
+                }
+                Options opt = builder.build();
+                new Runner(opt).run();
+
+                Histogram merged = new Histogram();
+                File[] files = dir.listFiles((d, n) -> n.endsWith(".hist"));
+                if (files != null) {
+                    for (File f : files) {
+                        merged.add(Histogram.readFrom(f));
+                    }
+                }
+                String cpus = placement.getValue() == null ? "" : " (cpus " + placement.getValue() + ")";
+                JMHSample_42_LatencyHistogram.print(placement.getKey() + cpus + ", " + mechanism + " round trip", merged);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Integer.getInteger;
+
+/**
+ * {@link JMHSample_17_SyncIterations} 只在一个线程数下跑，{@link JMHSample_31_InfraParams} 固定用 4 个线程，
+ * 看不出线程数再加上去会怎样。
+ * <p>
+ * 这个例子的 main 是一个通用的扩展性测试：把指定的基准测试按 1, 2, 4, ... 个线程各跑一遍，
+ * 然后用通用扩展性定律 (Universal Scalability Law, USL) 拟合吞吐量曲线：
+ * <pre>
+ *     X(N) = λN / (1 + σ(N - 1) + κN(N - 1))
+ * </pre>
+ * <ul>
+ * <li> σ 是争用系数：串行的部分，比如一把锁，它让曲线趋于平缓，这就是 Amdahl 定律；
+ * <li> κ 是一致性系数：线程之间要互相同步数据，比如 cache line 来回传递，它让曲线在某个点之后往下走。
+ * </ul>
+ * κ > 0 时吞吐量在 N* = sqrt((1 - σ) / κ) 达到最高，再加线程只会更慢。
+ * <p>
+ * 拟合用的是线性化的办法：令 C(N) = X(N) / X(1)，x = N - 1，
+ * 则 N / C(N) - 1 = σx + κx(x + 1)，对 σ 和 κ 做没有截距的最小二乘。
+ * <p>
+ * 默认测的是本例自带的 {@link #work}：每次操作先在锁外做 parallel 份工作，再在锁里做 serial 份，
+ * 最后 CAS 一个共享计数器，三种因素都有。也可以在命令行指定别的基准测试，例如：
+ * <pre>
+ *     java -DmaxThreads=32 -cp ... com.dawnop.benchmark.JMHSample_54_ScalingRunner JMHSample_31_InfraParams.measureFollowThreads
+ * </pre>
+ * 不管原来是什么模式，这里都按吞吐量来测。@Group 的基准测试不受 threads 影响，不适合用这个 runner。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JMHSample_54_ScalingRunner {
+
+    @Param({"100"})
+    private int parallel;
+
+    @Param({"5"})
+    private int serial;
+
+    private final Object lock = new Object();
+    private final AtomicLong shared = new AtomicLong();
+
+    @Benchmark
+    public long work() {
+        Blackhole.consumeCPU(parallel);
+        synchronized (lock) {
+            Blackhole.consumeCPU(serial);
+        }
+        return shared.incrementAndGet();
+    }
+
+    /**
+     * USL 的拟合结果。
+     */
+    public static class Usl {
+        final double lambda;
+        final double sigma;
+        final double kappa;
+
+        Usl(double lambda, double sigma, double kappa) {
+            this.lambda = lambda;
+            this.sigma = sigma;
+            this.kappa = kappa;
+        }
+
+        public double predict(double n) {
+            return lambda * n / (1 + sigma * (n - 1) + kappa * n * (n - 1));
+        }
+
+        /**
+         * 吞吐量最高时的线程数，κ = 0 时没有峰值，返回正无穷。
+         */
+        public double peakThreads() {
+            if (kappa <= 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return Math.sqrt((1 - sigma) / kappa);
+        }
+
+        /**
+         * @param scores 线程数到吞吐量，必须包含 1 个线程的结果
+         */
+        public static Usl fit(Map<Integer, Double> scores) {
+            Double x1 = scores.get(1);
+            if (x1 == null || x1 <= 0) {
+                throw new IllegalArgumentException("Need a positive single-thread score: " + scores);
+            }
+            // 正规方程 [a b; b c] [σ κ]' = [d e]'
+            double a = 0, b = 0, c = 0, d = 0, e = 0;
+            for (Map.Entry<Integer, Double> s : scores.entrySet()) {
+                double x = s.getKey() - 1;
+                double y = s.getKey() / (s.getValue() / x1) - 1;
+                double z = x * (x + 1);
+                a += x * x;
+                b += x * z;
+                c += z * z;
+                d += x * y;
+                e += z * y;
+            }
+            if (a == 0) {
+                return new Usl(x1, 0, 0);
+            }
+            double det = a * c - b * b;
+            double sigma = det == 0 ? 0 : (d * c - b * e) / det;
+            double kappa = det == 0 ? 0 : (a * e - b * d) / det;
+            // 系数不能是负的，某一个是负的就只拟合另一个
+            if (kappa < 0 || det == 0) {
+                kappa = 0;
+                sigma = d / a;
+            }
+            if (sigma < 0) {
+                sigma = 0;
+                kappa = c == 0 ? 0 : Math.max(0, e / c);
+            }
+            return new Usl(x1, sigma, kappa);
+        }
+    }
+
+    private static String label(BenchmarkParams params) {
+        StringBuilder sb = new StringBuilder(params.getBenchmark());
+        for (String k : params.getParamsKeys()) {
+            sb.append(' ').append(k).append('=').append(params.getParam(k));
+        }
+        return sb.toString();
+    }
+
+    static void report(String label, Map<Integer, Double> scores, String unit) {
+        Usl usl = Usl.fit(scores);
+        System.out.println();
+        System.out.println(label);
+        System.out.printf("  %8s %14s %14s %8s%n", "threads", "measured", "USL", "error");
+        for (Map.Entry<Integer, Double> s : scores.entrySet()) {
+            double predicted = usl.predict(s.getKey());
+            System.out.printf("  %8d %14.3f %14.3f %7.1f%%%n",
+                    s.getKey(), s.getValue(), predicted, 100 * (predicted - s.getValue()) / s.getValue());
+        }
+        System.out.printf("  lambda = %.3f %s, sigma = %.5f, kappa = %.7f%n", usl.lambda, unit, usl.sigma, usl.kappa);
+        double peak = usl.peakThreads();
+        if (usl.sigma == 0 && usl.kappa == 0) {
+            System.out.println("  scales linearly");
+        } else if (usl.sigma >= 1) {
+            System.out.println("  does not scale, a single thread is fastest");
+        } else if (Double.isInfinite(peak)) {
+            System.out.printf("  no coherency penalty, throughput approaches %.3f %s%n", usl.lambda / usl.sigma, unit);
+        } else {
+            System.out.printf("  predicted peak at %.1f threads, %.3f %s%n", peak, usl.predict(peak), unit);
+        }
+    }
+
+    /**
+     * 线程数从 1 开始翻倍，直到 -DmaxThreads，默认是 CPU 数的两倍。
+     */
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : JMHSample_54_ScalingRunner.class.getSimpleName();
+        int maxThreads = getInteger("maxThreads", 2 * Runtime.getRuntime().availableProcessors());
+
+        Map<String, Map<Integer, Double>> curves = new LinkedHashMap<>();
+        Map<String, String> units = new LinkedHashMap<>();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(include)
+                    .mode(Mode.Throughput)
+                    .threads(threads)
+                    .build();
+
+            for (RunResult r : new Runner(opt).run()) {
+                String label = label(r.getParams());
+                curves.computeIfAbsent(label, k -> new TreeMap<>()).put(threads, r.getPrimaryResult().getScore());
+                units.put(label, r.getPrimaryResult().getScoreUnit());
+            }
+        }
+
+        for (Map.Entry<String, Map<Integer, Double>> curve : curves.entrySet()) {
+            report(curve.getKey(), curve.getValue(), units.get(curve.getKey()));
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link JMHSample_35_Profilers.Classy} 每次都新建一个 XLoader 来加载同一个类 X。
+ * 插件系统在启动的时候要加载成千上万个生成出来的类，那时候关心的是：
+ * <ul>
+ * <li> fresh：每个类一个新的类加载器，也就是 Classy.load 的做法；
+ * <li> serial：所有类共用一个普通的类加载器，加载时锁住整个加载器；
+ * <li> parallel：共用一个注册为 parallel capable 的类加载器，每个类名一把锁，多线程加载时不会互相等；
+ * <li> hidden：{@code Lookup.defineHiddenClass} (JDK 15+)，不经过类加载器，也不用起名字；
+ * <li> loadClassHit / cacheHit：类已经加载过了，再要一次。
+ *      前者走 ClassLoader.loadClass (加锁、findLoadedClass)，后者先查自己的 ConcurrentHashMap。
+ * </ul>
+ * 生成的类就是 X，只是把常量池里的类名换掉了，每次加载的都是一个新名字。
+ * 每个 iteration 换一批类加载器，之前加载的类可以被卸载。
+ * <p>
+ * 配合 -prof cl 可以确认每次操作确实加载了一个类。
+ * <p>
+ * CDS (class data sharing) 只对 JDK 自带的和 classpath 上的类有用，对生成的类没有帮助。
+ * 所以另外用 SingleShotTime 测一下冷启动时第一次加载一批 JDK 类要多久，
+ * main 里用不同的 jvmArgs 比较：-Xshare:off、默认的 CDS 归档，以及 JDK 13+ 的动态 AppCDS 归档。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JMHSample_55_ClassLoading {
+
+    private static final String PACKAGE = JMHSample_55_ClassLoading.class.getPackage().getName();
+    private static final AtomicInteger NAMES = new AtomicInteger();
+
+    /**
+     * 把 X 的类名换成 internalName，例如 com/dawnop/benchmark/X42。
+     * 常量池里类名是一个长度为 1 的 Utf8 项：01 00 01 'X'。
+     */
+    static byte[] bytecode(String internalName) {
+        byte[] x = JMHSample_35_Profilers.Classy.XLoader.X_BYTECODE;
+        int at = -1;
+        for (int i = 0; i + 3 < x.length; i++) {
+            if (x[i] == 1 && x[i + 1] == 0 && x[i + 2] == 1 && x[i + 3] == 'X') {
+                at = i;
+                break;
+            }
+        }
+        if (at < 0) {
+            throw new IllegalStateException("Class name not found in X_BYTECODE");
+        }
+        byte[] name = internalName.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[x.length - 1 + name.length];
+        System.arraycopy(x, 0, result, 0, at + 1);
+        result[at + 1] = (byte) (name.length >>> 8);
+        result[at + 2] = (byte) name.length;
+        System.arraycopy(name, 0, result, at + 3, name.length);
+        System.arraycopy(x, at + 4, result, at + 3 + name.length, x.length - at - 4);
+        return result;
+    }
+
+    static String nextName() {
+        return PACKAGE + ".X" + NAMES.getAndIncrement();
+    }
+
+    /**
+     * 找不到的类都按 X 生成出来。
+     * 没有注册 parallel capable，getClassLoadingLock 返回的就是加载器自己。
+     */
+    static class SerialLoader extends ClassLoader {
+        SerialLoader() {
+            super(ClassLoader.getSystemClassLoader());
+        }
+
+        @Override
+        protected Class<?> findClass(String name) {
+            byte[] b = bytecode(name.replace('.', '/'));
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    /**
+     * 和 SerialLoader 一样，只是注册成了 parallel capable。
+     * 父类都注册了才能注册成功，所以直接继承 ClassLoader，而不是 SerialLoader。
+     */
+    static class ParallelLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        ParallelLoader() {
+            super(ClassLoader.getSystemClassLoader());
+        }
+
+        @Override
+        protected Class<?> findClass(String name) {
+            byte[] b = bytecode(name.replace('.', '/'));
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    /**
+     * 在 loadClass 前面加一层 ConcurrentHashMap，命中的时候不加锁，也不进 native 方法。
+     */
+    static class CachingLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final ConcurrentHashMap<String, Class<?>> cache = new ConcurrentHashMap<>();
+
+        CachingLoader() {
+            super(ClassLoader.getSystemClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> c = cache.get(name);
+            if (c == null) {
+                c = super.loadClass(name, resolve);
+                cache.putIfAbsent(name, c);
+            }
+            return c;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) {
+            byte[] b = bytecode(name.replace('.', '/'));
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    private SerialLoader serial;
+    private ParallelLoader parallel;
+
+    @Setup(Level.Iteration)
+    public void newLoaders() {
+        serial = new SerialLoader();
+        parallel = new ParallelLoader();
+    }
+
+    @Benchmark
+    public Class<?> fresh() throws ClassNotFoundException {
+        return Class.forName("X", true, new JMHSample_35_Profilers.Classy.XLoader());
+    }
+
+    @Benchmark
+    public Class<?> serial() throws ClassNotFoundException {
+        return Class.forName(nextName(), true, serial);
+    }
+
+    @Benchmark
+    public Class<?> parallel() throws ClassNotFoundException {
+        return Class.forName(nextName(), true, parallel);
+    }
+
+    /**
+     * 预先加载好的一批类，测的是“再要一次”的开销。
+     */
+    @State(Scope.Benchmark)
+    public static class Loaded {
+        static final int COUNT = 1024;
+
+        final String[] names = new String[COUNT];
+        final SerialLoader serial = new SerialLoader();
+        final CachingLoader caching = new CachingLoader();
+
+        @Setup
+        public void setup() throws ClassNotFoundException {
+            for (int i = 0; i < COUNT; i++) {
+                names[i] = nextName();
+                serial.loadClass(names[i]);
+                caching.loadClass(names[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        String name(Loaded loaded) {
+            return loaded.names[next++ & (Loaded.COUNT - 1)];
+        }
+    }
+
+    @Benchmark
+    public Class<?> loadClassHit(Loaded loaded, Cursor cursor) throws ClassNotFoundException {
+        return loaded.serial.loadClass(cursor.name(loaded));
+    }
+
+    @Benchmark
+    public Class<?> cacheHit(Loaded loaded, Cursor cursor) throws ClassNotFoundException {
+        return loaded.caching.loadClass(cursor.name(loaded));
+    }
+
+    /**
+     * 用反射找 Lookup.defineHiddenClass，JDK 15 以下没有这个方法，setup 会失败，只影响 hidden 这一个测试。
+     * 隐藏类必须和 lookup 在同一个包里，名字会被 JVM 加上唯一的后缀，所以可以一直用同一个名字。
+     */
+    @State(Scope.Benchmark)
+    public static class Hidden {
+        MethodHandle define;
+        Object options;
+        MethodHandles.Lookup lookup;
+        byte[] bytes;
+
+        @Setup
+        public void setup() throws ReflectiveOperationException {
+            Class<?> option;
+            try {
+                option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            } catch (ClassNotFoundException e) {
+                throw new UnsupportedOperationException("Hidden classes need JDK 15+", e);
+            }
+            options = Array.newInstance(option, 0);
+            define = MethodHandles.publicLookup().findVirtual(MethodHandles.Lookup.class, "defineHiddenClass",
+                    MethodType.methodType(MethodHandles.Lookup.class, byte[].class, boolean.class, options.getClass()))
+                    // 可变参数的方法，不固定下来的话 options 数组会被再包一层
+                    .asFixedArity();
+            lookup = MethodHandles.lookup();
+            bytes = bytecode(PACKAGE.replace('.', '/') + "/XHidden");
+        }
+    }
+
+    @Benchmark
+    public Class<?> hidden(Hidden hidden) throws Throwable {
+        MethodHandles.Lookup l = (MethodHandles.Lookup) hidden.define.invoke(hidden.lookup, hidden.bytes, true, hidden.options);
+        return l.lookupClass();
+    }
+
+    /**
+     * 第一次加载一批 JDK 的类，每个 fork 只测一次。
+     * 有些类可能已经被 JMH 自己加载了，那部分就只是查一下。
+     */
+    static final String[] JDK_CLASSES = {
+            "java.time.ZonedDateTime",
+            "java.time.format.DateTimeFormatter",
+            "java.util.logging.Logger",
+            "java.util.zip.ZipOutputStream",
+            "java.util.concurrent.CompletableFuture",
+            "java.util.stream.Collectors",
+            "javax.xml.parsers.DocumentBuilderFactory",
+            "java.beans.PropertyChangeSupport",
+    };
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(20)
+    public void jdkClasses(Blackhole bh) throws ClassNotFoundException {
+        for (String name : JDK_CLASSES) {
+            bh.consume(Class.forName(name));
+        }
+    }
+
+    /**
+     * 先在 1 个和 4 个线程下测各种加载方式，4 个线程时 serial 和 parallel 的差别才会出来。
+     * <p>
+     * 再用 jdkClasses 比较 CDS：动态归档先用 -XX:ArchiveClassesAtExit 跑一次生成，再用 -XX:SharedArchiveFile 来测。
+     */
+    public static void main(String[] args) throws RunnerException, IOException {
+        for (int threads : new int[]{1, 4}) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_55_ClassLoading.class.getSimpleName())
+                    .exclude("jdkClasses")
+                    .threads(threads)
+                    .build();
+
+            new Runner(opt).run();
+        }
+
+        String jdkClasses = JMHSample_55_ClassLoading.class.getSimpleName() + ".jdkClasses";
+        for (String share : new String[]{"-Xshare:off", "-Xshare:auto"}) {
+            Options opt = new OptionsBuilder()
+                    .include(jdkClasses)
+                    .jvmArgsAppend(share)
+                    .build();
+
+            new Runner(opt).run();
+        }
+
+        if (Platform.javaVersion() >= 13) {
+            File archive = File.createTempFile("jmh-appcds-", ".jsa");
+            archive.deleteOnExit();
+            Options dump = new OptionsBuilder()
+                    .include(jdkClasses)
+                    .forks(1)
+                    .jvmArgsAppend("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath())
+                    .build();
+            new Runner(dump).run();
+
+            Options opt = new OptionsBuilder()
+                    .include(jdkClasses)
+                    .jvmArgsAppend("-XX:SharedArchiveFile=" + archive.getAbsolutePath())
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.Integer.getInteger;
+
+/**
+ * 冷启动关心的是 JVM 刚启动时第一次做某件事有多慢，这时候类还没加载、代码还在解释执行。
+ * {@link JMHSample_26_BatchSize} 里的 SingleShotTime 正好适用：不预热，每个 fork 只调用一次，
+ * 多 fork 几次看分布。
+ * <p>
+ * 测量的都是“第一次”：
+ * <ul>
+ * <li> firstClassLoad：第一次通过 {@link JMHSample_35_Profilers.Classy} 的 XLoader 加载类；
+ * <li> staticInit：第一次访问 {@link Heavy}，触发它的静态初始化；
+ * <li> firstLambda：第一次用 lambda 和 stream，要启动 LambdaMetafactory 那一套；
+ * <li> firstJit：一个小方法调用 20000 次，刚开始是解释执行，中途被 C1/C2 编译。
+ * </ul>
+ * JMH 只计 @Benchmark 方法本身的时间，JVM 启动、JMH 初始化都不算在内。
+ * <p>
+ * main 在几组 JVM 参数下各跑一遍，最后打印每组的分布 (min / p50 / p90 / max)，而不只是平均值：
+ * <ul>
+ * <li> 默认参数；
+ * <li> -XX:TieredStopAtLevel=1：只用 C1，编译得快但代码慢；
+ * <li> -Xshare:off：不用 CDS 归档，JDK 的类都要从 jimage 里解析；
+ * <li> 动态 AppCDS 归档 (JDK 13+)：先跑一次用 -XX:ArchiveClassesAtExit 生成。
+ * </ul>
+ * 每个 fork 只跑一个基准测试，退出时写的归档也只包含这一个基准测试加载的类，
+ * 所以 AppCDS 要给每个基准测试单独生成一个归档，测的时候用各自的归档。
+ * fork 的次数用 -Dforks 指定，默认 30。
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(30)
+@State(Scope.Thread)
+public class JMHSample_56_Startup {
+
+    /**
+     * 静态初始化做点像样的事：建一张表、编译一个正则。
+     */
+    static class Heavy {
+        static final int[] SQUARES = new int[1 << 16];
+        static final Pattern WORDS = Pattern.compile("\\b\\w+\\b");
+
+        static {
+            for (int i = 0; i < SQUARES.length; i++) {
+                SQUARES[i] = i * i;
+            }
+        }
+    }
+
+    @Benchmark
+    public Class<?> firstClassLoad() throws ClassNotFoundException {
+        return Class.forName("X", true, new JMHSample_35_Profilers.Classy.XLoader());
+    }
+
+    @Benchmark
+    public int staticInit() {
+        return Heavy.SQUARES[42] + Heavy.WORDS.flags();
+    }
+
+    @Benchmark
+    public String firstLambda() {
+        return IntStream.range(0, 100)
+                .filter(i -> i % 3 == 0)
+                .mapToObj(Integer::toString)
+                .collect(Collectors.joining(","));
+    }
+
+    private int x = 1;
+
+    private int step(int v) {
+        return v * 31 + 7;
+    }
+
+    @Benchmark
+    public int firstJit() {
+        int v = x;
+        for (int i = 0; i < 20_000; i++) {
+            v = step(v);
+        }
+        return v;
+    }
+
+    /**
+     * 每个 fork 只有一个样本，把所有 fork 的样本收集起来。
+     */
+    static Map<String, ListStatistics> collect(Collection<RunResult> results) {
+        Map<String, ListStatistics> stats = new LinkedHashMap<>();
+        for (RunResult r : results) {
+            ListStatistics s = new ListStatistics();
+            for (BenchmarkResult br : r.getBenchmarkResults()) {
+                for (IterationResult ir : br.getIterationResults()) {
+                    s.addValue(ir.getPrimaryResult().getScore());
+                }
+            }
+            String name = r.getParams().getBenchmark();
+            stats.put(name.substring(name.lastIndexOf('.') + 1), s);
+        }
+        return stats;
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        int forks = getInteger("forks", 30);
+
+        Map<String, String[]> configs = new LinkedHashMap<>();
+        configs.put("default", new String[0]);
+        configs.put("C1 only", new String[]{"-XX:TieredStopAtLevel=1"});
+        configs.put("no CDS", new String[]{"-Xshare:off"});
+
+        Map<String, Map<String, ListStatistics>> all = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> config : configs.entrySet()) {
+            Options opt = new OptionsBuilder()
+                    .include(JMHSample_56_Startup.class.getSimpleName())
+                    .forks(forks)
+                    .jvmArgsAppend(config.getValue())
+                    .build();
+            all.put(config.getKey(), collect(new Runner(opt).run()));
+        }
+
+        if (Platform.javaVersion() >= 13) {
+            Map<String, ListStatistics> appCds = new LinkedHashMap<>();
+            for (String benchmark : all.get("default").keySet()) {
+                String include = JMHSample_56_Startup.class.getSimpleName() + "." + benchmark + "$";
+                File archive = File.createTempFile("jmh-startup-" + benchmark + "-", ".jsa");
+                archive.deleteOnExit();
+                Options dump = new OptionsBuilder()
+                        .include(include)
+                        .forks(1)
+                        .jvmArgsAppend("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath())
+                        .build();
+                new Runner(dump).run();
+
+                Options opt = new OptionsBuilder()
+                        .include(include)
+                        .forks(forks)
+                        .jvmArgsAppend("-XX:SharedArchiveFile=" + archive.getAbsolutePath())
+                        .build();
+                appCds.putAll(collect(new Runner(opt).run()));
+            }
+            all.put("AppCDS", appCds);
+        }
+
+        List<String> benchmarks = new ArrayList<>(all.values().iterator().next().keySet());
+        for (String benchmark : benchmarks) {
+            System.out.println();
+            System.out.printf("%s (us)%n", benchmark);
+            System.out.printf("  %-10s %10s %10s %10s %10s%n", "", "min", "p50", "p90", "max");
+            for (Map.Entry<String, Map<String, ListStatistics>> config : all.entrySet()) {
+                ListStatistics s = config.getValue().get(benchmark);
+                System.out.printf("  %-10s %10.1f %10.1f %10.1f %10.1f%n", config.getKey(),
+                        s.getMin(), s.getPercentile(50), s.getPercentile(90), s.getMax());
+            }
+        }
+    }
+
+}
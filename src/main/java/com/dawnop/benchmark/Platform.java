@@ -0,0 +1,236 @@
+package com.dawnop.benchmark;
+
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 几个例子共用的、和运行环境有关的小工具。
+ * <p>
+ * 把 CPU 划分成槽位时不能假设能用的 CPU 就是 0..n-1：
+ * 在 cgroup 的 cpuset 里、或者父进程已经被 taskset 限制过的时候，
+ * 能用的 CPU 可能是 4-7,12-15 这样的编号，taskset 拿到不在其中的编号会直接拒绝。
+ */
+final class Platform {
+
+    private Platform() {
+    }
+
+    /**
+     * 运行时的 Java 大版本号，1.8 返回 8。
+     */
+    static int javaVersion() {
+        String v = System.getProperty("java.specification.version");
+        return v.startsWith("1.") ? Integer.parseInt(v.substring(2)) : Integer.parseInt(v);
+    }
+
+    /**
+     * 当前进程能用的 CPU 编号，从小到大排列。
+     * Linux 上读 /proc/self/status 的 Cpus_allowed_list，读不到就当作 0..n-1。
+     */
+    static List<Integer> allowedCpus() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/status").toPath(), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    List<Integer> cpus = parseCpuList(line.substring(line.indexOf(':') + 1));
+                    if (!cpus.isEmpty()) {
+                        return cpus;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // 不是 Linux
+        }
+        List<Integer> cpus = new ArrayList<>();
+        for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+            cpus.add(i);
+        }
+        return cpus;
+    }
+
+    /**
+     * 解析 taskset 格式的 CPU 列表，例如 "0-3,8-11"。
+     */
+    static List<Integer> parseCpuList(String list) {
+        List<Integer> cpus = new ArrayList<>();
+        for (String part : list.trim().split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            String[] range = part.split("-");
+            int from = Integer.parseInt(range[0].trim());
+            int to = (range.length == 1) ? from : Integer.parseInt(range[1].trim());
+            for (int cpu = from; cpu <= to; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus;
+    }
+
+    /**
+     * 反过来，把 CPU 编号写成 taskset 格式，连续的编号合并成一段。
+     */
+    static String formatCpuList(List<Integer> cpus) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < cpus.size(); ) {
+            int j = i;
+            while (j + 1 < cpus.size() && cpus.get(j + 1) == cpus.get(j) + 1) {
+                j++;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(cpus.get(i));
+            if (j > i) {
+                sb.append('-').append(cpus.get(j));
+            }
+            i = j + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 把能用的 CPU 等分成 n 个槽位，返回每个槽位的 taskset 列表。
+     * 分不匀的时候多出来的几个 CPU 不用，每个槽位一样大，测出来的结果才能比较。
+     */
+    static List<String> partition(int n) {
+        List<Integer> cpus = allowedCpus();
+        n = Math.max(1, Math.min(n, cpus.size()));
+        int perSlot = cpus.size() / n;
+        List<String> slots = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            slots.add(formatCpuList(cpus.subList(i * perSlot, (i + 1) * perSlot)));
+        }
+        return slots;
+    }
+
+    /**
+     * 槽位：一组 CPU 以及绑定这组 CPU 的 JVM 启动脚本。
+     */
+    static final class Slot {
+        private final String cpus;
+        private final int count;
+        private final String jvm;
+
+        /**
+         * cpus 为 null 表示不绑定。
+         */
+        Slot(String cpus) {
+            this.cpus = cpus;
+            this.count = (cpus == null) ? 0 : parseCpuList(cpus).size();
+            this.jvm = (cpus == null) ? null : pinnedJvm(cpus);
+        }
+
+        Options apply(Options opts) {
+            if (cpus == null) {
+                return opts;
+            }
+            OptionsBuilder b = new OptionsBuilder();
+            b.parent(opts);
+            b.jvmArgsAppend("-XX:ActiveProcessorCount=" + count);
+            if (jvm != null) {
+                b.jvm(jvm);
+            }
+            return b.build();
+        }
+
+        /**
+         * 用槽位的启动脚本跑一次 java -version，起不来就抛异常。
+         */
+        void verify() {
+            if (jvm == null) {
+                return;
+            }
+            try {
+                Process p = new ProcessBuilder(jvm, "-XX:ActiveProcessorCount=" + count, "-version")
+                        .redirectErrorStream(true)
+                        .start();
+                byte[] out = readAll(p.getInputStream());
+                if (p.waitFor() != 0) {
+                    throw new IllegalStateException("Can not start a JVM pinned to cpus " + cpus + ": "
+                            + new String(out, StandardCharsets.UTF_8).trim());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not start a JVM pinned to cpus " + cpus, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while checking cpus " + cpus, e);
+            }
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) > 0; ) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * JMH 不支持在 JVM 命令前加前缀，只好生成一个调用 taskset 的启动脚本，
+     * 再通过 -jvm 把它当作 JVM 交给 JMH。没有 taskset 或者写不了脚本时返回 null。
+     */
+    static String pinnedJvm(String cpus) {
+        File taskset = new File("/usr/bin/taskset");
+        if (!taskset.canExecute()) {
+            return null;
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        try {
+            File script = File.createTempFile("jmh-slot-" + cpus + "-", ".sh");
+            script.deleteOnExit();
+            String body = "#!/bin/sh\nexec " + taskset.getPath() + " -c " + cpus + " \"" + java + "\" \"$@\"\n";
+            Files.write(script.toPath(), body.getBytes(StandardCharsets.UTF_8));
+            return script.setExecutable(true) ? script.getAbsolutePath() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 项目按 Java 8 编译，源码里不能直接写 VarHandle。
+     * 在 Java 9 以上的 JVM 上，通过反射找到 holder.field 的 VarHandle，
+     * 再用 MethodHandles.varHandleExactInvoker 把某种访问模式变成一个绑定好的 MethodHandle：
+     * 例如 mode 为 "SET_RELEASE"、type 为 (Holder, long)void 时，调用它就相当于 vh.setRelease(holder, v)。
+     * 放在 static final 字段里，JIT 把它当成常量内联，和直接调用 VarHandle 没有区别。
+     * <p>
+     * Java 8 上没有 VarHandle，返回 null。
+     */
+    static MethodHandle varHandle(MethodHandles.Lookup lookup, Class<?> holder, String field,
+                                  String mode, MethodType type) {
+        Class<?> accessMode;
+        try {
+            accessMode = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        try {
+            Class<?> fieldType = holder.getDeclaredField(field).getType();
+            Method find = MethodHandles.Lookup.class.getMethod("findVarHandle", Class.class, String.class, Class.class);
+            Object vh = find.invoke(lookup, holder, field, fieldType);
+            Method invoker = MethodHandles.class.getMethod("varHandleExactInvoker", accessMode, MethodType.class);
+            MethodHandle mh = (MethodHandle) invoker.invoke(null, accessMode.getField(mode).get(null), type);
+            return mh.bindTo(vh);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Can not get VarHandle for " + holder.getName() + "." + field, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can not get VarHandle for " + holder.getName() + "." + field, e);
+        }
+    }
+}